@@ -1,6 +1,8 @@
 package gg.playit.api;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import gg.playit.api.actions.*;
 import gg.playit.api.models.*;
 import gg.playit.minecraft.utils.DecoderException;
@@ -10,37 +12,127 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ApiClient {
         private static final String API_URL = "https://api.playit.cloud";
 //    private static final String API_URL = "http://localhost:8080";
 
-    private final HttpClient client;
+    private static final CallListener NO_LISTENER = (micros, failed) -> {
+    };
+
+    /*
+     * one client for the whole plugin so every ApiClient shares warm TLS / HTTP/2 connections.
+     * Its executor has at most two daemon threads that exit when idle, so a burst of calls can't
+     * grow the pool and nothing is left running after the plugin is disabled or reloaded
+     */
+    private static final HttpClient SHARED_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(newExecutor())
+            .build();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /* built once per type, looking them up on the mapper resolves serializers every call */
+    private static final ClassValue<ObjectWriter> WRITERS = new ClassValue<>() {
+        @Override
+        protected ObjectWriter computeValue(Class<?> type) {
+            return MAPPER.writerFor(type);
+        }
+    };
+    private static final ClassValue<ObjectReader> READERS = new ClassValue<>() {
+        @Override
+        protected ObjectReader computeValue(Class<?> type) {
+            return MAPPER.readerFor(type);
+        }
+    };
+    private static final ConcurrentHashMap<InFlightKey, CompletableFuture<Object>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static volatile CallListener callListener = NO_LISTENER;
+
+    private final HttpClient client = SHARED_CLIENT;
     private final String secret;
-    private final ObjectMapper mapper = new ObjectMapper();
 
+    /**
+     * Told about every finished API call, on an HTTP client thread.
+     */
+    public interface CallListener {
+        /**
+         * @param micros time from sending the request until the response or failure
+         * @param failed the request failed or the status wasn't 200
+         */
+        void completed(long micros, boolean failed);
+    }
+
+    /**
+     * Replaces the listener for calls of all instances, null removes it.
+     */
+    public static void setCallListener(CallListener listener) {
+        callListener = listener == null ? NO_LISTENER : listener;
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        var threads = new AtomicInteger();
+        var executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            var thread = new Thread(runnable, "playit-http-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Cheap handle for a secret, all instances share one HTTP client.
+     */
     public ApiClient(String secret) {
-        client = HttpClient.newHttpClient();
         this.secret = secret;
     }
 
     public byte[] getSignedAgentRegisterData(SignAgentRegister req) throws IOException, DecoderException {
-        return execute(req, SignedData.class).decode();
+        return execute(req, SignedData.class, true).decode();
+    }
+
+    /**
+     * Completes exceptionally with a {@link DecoderException} if the response isn't valid hex.
+     */
+    public CompletableFuture<byte[]> getSignedAgentRegisterDataAsync(SignAgentRegister req) {
+        return executeAsync(req, SignedData.class, true).thenApply(data -> {
+            try {
+                return data.decode();
+            } catch (DecoderException e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
     public AccountTunnels listTunnels() throws IOException {
-        return execute(new ListFromAccount(ListFromAccount.Type.AccountTunnels), AccountTunnels.class);
+        return execute(new ListFromAccount(ListFromAccount.Type.AccountTunnels), AccountTunnels.class, true);
     }
 
     public Created createTunnel(CreateTunnel create) throws IOException {
-        return execute(create, Created.class);
+        return execute(create, Created.class, false);
+    }
+
+    public CompletableFuture<Created> createTunnelAsync(CreateTunnel create) {
+        return executeAsync(create, Created.class, false);
     }
 
     public String exchangeClaimForSecret(String claim) {
         try {
             var req = new ExchangeClaimForSecret();
             req.claimKey = claim;
-            var res = execute(req, AgentSecret.class);
+            var res = execute(req, AgentSecret.class, false);
             return res.secretKey;
         } catch (IOException e) {
             return null;
@@ -48,16 +140,72 @@ public class ApiClient {
     }
 
     public SessionStatus getStatus() throws IOException {
-        return execute(new GetStatus(), SessionStatus.class);
+        return execute(new GetStatus(), SessionStatus.class, true);
     }
 
     public String createGuestWebSessionKey() throws IOException {
-        return execute(new CreateGuestSession(), WebSession.class).sessionKey;
+        return execute(new CreateGuestSession(), WebSession.class, false).sessionKey;
+    }
+
+    private <T> T execute(Action action, Class<T> responseType, boolean coalesce) throws IOException {
+        try {
+            return executeAsync(action, responseType, coalesce).get();
+        } catch (InterruptedException e) {
+            throw new IOException("client send / read interrupted", e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException("request failed", cause);
+        }
     }
 
-    private <T> T execute(Action action, Class<T> responseType) throws IOException {
-        var requestBody = mapper.writeValueAsString(action);
+    /**
+     * @param coalesce only for read-only calls: identical requests (same secret, action and body)
+     *                 still in flight share one round trip and the same response object, which
+     *                 callers must not modify. Calls with side effects always get their own request.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> executeAsync(Action action, Class<T> responseType, boolean coalesce) {
+        byte[] requestBody;
+        try {
+            requestBody = WRITERS.get(action.getClass()).writeValueAsBytes(action);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
+        if (!coalesce) {
+            return send(action, requestBody, responseType);
+        }
+
+        var key = new InFlightKey(secret, action.getPath(), responseType, requestBody);
+        var future = IN_FLIGHT.get(key);
+        if (future == null) {
+            var started = new CompletableFuture<Object>();
+            future = IN_FLIGHT.putIfAbsent(key, started);
+
+            if (future == null) {
+                future = started;
+                send(action, requestBody, responseType).whenComplete((res, error) -> {
+                    IN_FLIGHT.remove(key, started);
+                    if (error != null) {
+                        started.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                    } else {
+                        started.complete(res);
+                    }
+                });
+            }
+        }
+
+        /* a copy so one caller cancelling doesn't cancel the shared request */
+        return (CompletableFuture<T>) future.copy();
+    }
+
+    private <T> CompletableFuture<T> send(Action action, byte[] requestBody, Class<T> responseType) {
         HttpRequest.Builder builder = HttpRequest.newBuilder()
                 .uri(URI.create(API_URL + action.getPath()))
                 .header("Content-Type", "application/json")
@@ -68,20 +216,46 @@ public class ApiClient {
         }
 
         HttpRequest request = builder
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody))
                 .build();
 
-        try {
-            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        var startedAt = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) ->
+                callListener.completed((System.nanoTime() - startedAt) / 1000, error != null || response.statusCode() != 200)
+        ).thenApply(response -> {
             var responseBody = response.body();
 
-            if (response.statusCode() != 200) {
-                throw new ApiError(response.statusCode(), requestBody, responseBody);
+            try {
+                if (response.statusCode() != 200) {
+                    throw new ApiError(
+                            response.statusCode(),
+                            new String(requestBody, StandardCharsets.UTF_8),
+                            new String(responseBody, StandardCharsets.UTF_8)
+                    );
+                }
+
+                /* Jackson parses the UTF-8 bytes directly, no String copy of the body */
+                return READERS.get(responseType).readValue(responseBody);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        });
+    }
 
-            return mapper.readValue(responseBody, responseType);
-        } catch (InterruptedException e) {
-            throw new IOException("client send / read interrupted", e);
+    private record InFlightKey(String secret, String path, Class<?> responseType, byte[] requestBody) {
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof InFlightKey other)) return false;
+            return Objects.equals(secret, other.secret)
+                    && path.equals(other.path)
+                    && responseType == other.responseType
+                    && Arrays.equals(requestBody, other.requestBody);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(secret, path, responseType) * 31 + Arrays.hashCode(requestBody);
         }
     }
 }
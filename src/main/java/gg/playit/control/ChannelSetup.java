@@ -1,181 +1,367 @@
 package gg.playit.control;
 
 import gg.playit.api.ApiClient;
-import gg.playit.api.actions.SignAgentRegister;
 import gg.playit.messages.ControlFeedReader;
 import gg.playit.messages.ControlRequestWriter;
-import gg.playit.messages.DecodeException;
 import gg.playit.minecraft.logger.MessageManager;
-import gg.playit.minecraft.utils.DecoderException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
 
 import java.io.IOException;
 import java.net.*;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ChannelSetup {
     public static final int CONTROL_PORT = 5525;
 
+    /* how long discovery waits for the preferred address after another one answered */
+    private static final long PREFERRED_GRACE_MS = 500;
+    /* a control channel may move to a lower latency address at most this often */
+    private static final long MIN_MOVE_INTERVAL_MS = 10 * 60_000;
+
+    /* address length (4 or 16) of the endpoint that answered last, 0 until one has */
+    private static volatile int preferredAddressLength = 0;
+    /* address a control channel measured as closest, null until one has */
+    private static volatile InetAddress preferredAddress;
+    private static long lastMoveAt;
+    /*
+     * local port of the last control socket. Reconnecting from the same port keeps the client
+     * address the control server sees, so a cached register signature for it still matches
+     */
+    private static volatile int lastLocalPort;
+
+    /**
+     * Makes the next setup favour the given address, rate limited so the channel doesn't bounce
+     * between addresses with similar latency.
+     *
+     * @param force skip the rate limit, for failing over from an address that stopped answering
+     * @return false if the address was changed too recently
+     */
+    static synchronized boolean preferAddress(InetAddress address, boolean force) {
+        var now = System.currentTimeMillis();
+        if (!force && lastMoveAt != 0 && now - lastMoveAt < MIN_MOVE_INTERVAL_MS) {
+            return false;
+        }
+
+        lastMoveAt = now;
+        preferredAddress = address;
+        return true;
+    }
+
     public static FindSuitableChannel start() throws UnknownHostException {
         InetAddress[] allByName = InetAddress.getAllByName("control.playit.gg");
-        /* prefer IPv6 */
-        Arrays.sort(allByName, Comparator.comparingLong(a -> -a.getAddress().length));
+        /* the measured closest address goes first, then the family that worked last time, otherwise prefer IPv6 */
+        var preferred = preferredAddress;
+        int preferredLength = preferredAddressLength;
+        Arrays.sort(allByName, Comparator
+                .comparingInt((InetAddress a) -> a.equals(preferred) ? 0 : 1)
+                .thenComparingInt(a -> a.getAddress().length == preferredLength ? 0 : 1)
+                .thenComparingInt(a -> -a.getAddress().length));
 
         var setup = new FindSuitableChannel();
         setup.options = allByName;
         return setup;
     }
 
+    record Received(InetSocketAddress sender, ControlFeedReader.ControlFeed feed) {
+    }
+
+    /**
+     * Setup runs on the caller's thread, it waits on responses the channel's
+     * event loop puts into this queue.
+     */
+    static class ResponseQueue implements ControlFeedHandler.Sink {
+        private final LinkedBlockingQueue<Received> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public void accept(InetSocketAddress sender, ControlFeedReader.ControlFeed feed) {
+            queue.offer(new Received(sender, feed.copy()));
+        }
+
+        Received poll(long timeoutMillis) {
+            try {
+                return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    static void send(Channel channel, ByteBuffer data, InetSocketAddress target) throws IOException {
+        var future = channel.writeAndFlush(new DatagramPacket(
+                Unpooled.wrappedBuffer(data.array(), data.arrayOffset(), data.position()),
+                target
+        )).awaitUninterruptibly();
+
+        if (!future.isSuccess()) {
+            throw new IOException("failed to send control packet", future.cause());
+        }
+    }
+
     public static class FindSuitableChannel {
         private InetAddress[] options;
 
-        public SetupRequireAuthentication findChannel() throws IOException {
+        public SetupRequireAuthentication findChannel(EventLoopGroup group, Class<? extends DatagramChannel> channelClass) throws IOException {
             MessageManager msg = MessageManager.get();
-            var socket = new DatagramSocket();
 
-            /* 3 second timeout */
-            socket.setSoTimeout(3000);
+            var responses = new ResponseQueue();
+            var handler = new ControlFeedHandler(responses);
+
+            var bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(channelClass)
+                    .handler(handler);
+
+            var previousPort = lastLocalPort;
+            var bindFuture = previousPort == 0 ? null : bootstrap.bind(previousPort).awaitUninterruptibly();
+            if (bindFuture == null || !bindFuture.isSuccess()) {
+                if (bindFuture != null) {
+                    msg.debug("Control port " + previousPort + " unavailable, binding a new one");
+                    /* the failed channel already took the handler, it isn't sharable */
+                    handler = new ControlFeedHandler(responses);
+                    bootstrap.handler(handler);
+                }
+                bindFuture = bootstrap.bind(0).awaitUninterruptibly();
+            }
+
+            if (!bindFuture.isSuccess()) {
+                throw new IOException("failed to bind control socket", bindFuture.cause());
+            }
+
+            var channel = bindFuture.channel();
+            lastLocalPort = ((InetSocketAddress) channel.localAddress()).getPort();
 
             var buffer = ByteBuffer.allocate(1024);
             {
                 var builder = ControlRequestWriter.requestId(buffer, 1);
                 builder.ping(0, null);
             }
-            var bytesWritten = buffer.position();
 
+            /* ping every address at once and take the first pong, a broken path costs nothing */
+            var targets = new ArrayList<InetSocketAddress>(options.length);
             for (var option : options) {
-                for (var i = 0; i < 3; ++i) {
-                    try {
-                        var packet = new DatagramPacket(buffer.array(), 0, bytesWritten, new InetSocketAddress(option, CONTROL_PORT));
-                        socket.send(packet);
-
-                        DatagramPacket rxPacket = new DatagramPacket(new byte[1024], 0, 1024);
-                        socket.receive(rxPacket);
+                targets.add(new InetSocketAddress(option, CONTROL_PORT));
+            }
 
-                        if (!Arrays.equals(rxPacket.getAddress().getAddress(), option.getAddress()) || rxPacket.getPort() != CONTROL_PORT) {
-                            msg.debug("Got response from unexpected source: " + rxPacket.getAddress());
-                            continue;
-                        }
+            var preferred = preferredAddress;
+            var preferredTarget = preferred == null ? null : new InetSocketAddress(preferred, CONTROL_PORT);
+            if (preferredTarget != null && !targets.contains(preferredTarget)) {
+                preferredTarget = null;
+            }
 
-                        var in = ByteBuffer.wrap(rxPacket.getData(), rxPacket.getOffset(), rxPacket.getLength());
+            for (var i = 0; i < 3; ++i) {
+                var sent = 0;
+                for (var target : targets) {
+                    try {
+                        send(channel, buffer, target);
+                        sent++;
+                    } catch (IOException error) {
+                        msg.debug("IO error with " + target + ": " + error.getMessage());
+                    }
+                }
 
-                        try {
-                            var message = ControlFeedReader.read(in);
-                            if (message instanceof ControlFeedReader.Pong) {
-                                var next = new SetupRequireAuthentication();
-                                next.pong = (ControlFeedReader.Pong) message;
-                                next.socket = socket;
-                                next.address = option;
-                                return next;
-                            } else {
-                                msg.debug("Expected pong but got: " + message.getClass().getSimpleName());
-                            }
-                        } catch (DecodeException e) {
-                            msg.debug("Failed to decode pong: " + e.message);
-                        }
+                if (sent == 0) {
+                    break;
+                }
 
-                    } catch (SocketTimeoutException ignore) {
+                /* 3 second timeout for the round */
+                var deadline = System.currentTimeMillis() + 3000;
+                Received fallback = null;
+                long remaining;
+                while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                    var received = responses.poll(remaining);
+                    if (received == null) {
                         // Expected during retries, don't log
-                    } catch (IOException error) {
-                        msg.debug("IO error with " + option + ": " + error.getMessage());
                         break;
                     }
+
+                    if (!targets.contains(received.sender())) {
+                        msg.debug("Got response from unexpected source: " + received.sender());
+                        continue;
+                    }
+
+                    if (!(received.feed() instanceof ControlFeedReader.Pong)) {
+                        msg.debug("Expected pong but got: " + received.feed());
+                        continue;
+                    }
+
+                    /* a measured closer address gets a short head start over whoever answers first */
+                    if (preferredTarget == null || received.sender().equals(preferredTarget)) {
+                        return selected(channel, handler, responses, targets, received);
+                    }
+
+                    if (fallback == null) {
+                        fallback = received;
+                        deadline = Math.min(deadline, System.currentTimeMillis() + PREFERRED_GRACE_MS);
+                    }
+                }
+
+                if (fallback != null) {
+                    return selected(channel, handler, responses, targets, fallback);
                 }
             }
 
-            socket.close();
+            channel.close();
             throw new IOException("failed to establish connection to tunnel");
         }
     }
 
+    private static SetupRequireAuthentication selected(Channel channel, ControlFeedHandler handler, ResponseQueue responses,
+                                                       List<InetSocketAddress> targets, Received received) {
+        preferredAddressLength = received.sender().getAddress().getAddress().length;
+
+        var next = new SetupRequireAuthentication();
+        next.pong = (ControlFeedReader.Pong) received.feed();
+        next.channel = channel;
+        next.handler = handler;
+        next.responses = responses;
+        next.address = received.sender();
+        next.alternates = targets.stream()
+                .filter(target -> !target.equals(received.sender()))
+                .toArray(InetSocketAddress[]::new);
+        return next;
+    }
+
     public static class SetupRequireAuthentication {
         private ControlFeedReader.Pong pong;
-        private DatagramSocket socket;
-        private InetAddress address;
+        private Channel channel;
+        private ControlFeedHandler handler;
+        private ResponseQueue responses;
+        private InetSocketAddress address;
+        private InetSocketAddress[] alternates;
 
         @Override
         public String toString() {
             return "SetupRequireAuthentication{" +
                     "pong=" + pong +
-                    ", socket=" + socket +
+                    ", channel=" + channel +
                     ", address=" + address +
                     '}';
         }
 
         public PlayitControlChannel authenticate(String secretKey) throws IOException {
             MessageManager msg = MessageManager.get();
-            
-            if (this.socket == null) {
+
+            if (this.channel == null) {
                 throw new IOException("already used");
             }
 
-            var registerRequest = ByteBuffer.allocate(1024);
-
             try {
-                var client = new ApiClient(secretKey);
-                var req = new SignAgentRegister();
-                req.agentVersion = 10_001;
-                req.clientAddr = this.pong.clientAddr;
-                req.tunnelAddr = this.pong.tunnelAddr;
-                var data = client.getSignedAgentRegisterData(req);
-                ControlRequestWriter.requestId(registerRequest, 100).registerBytes(data);
-            } catch (DecoderException e) {
-                throw new IOException("failed parse hex response from server", e);
+                return register(secretKey);
+            } finally {
+                /* only keep the socket open if it was handed to a control channel */
+                if (this.channel != null) {
+                    this.channel.close();
+                    this.channel = null;
+                    msg.debug("Control channel registration failed");
+                }
             }
+        }
+
+        /**
+         * Discovery pings every address, so late pongs from the other addresses (or from
+         * retried pings) can still be queued, skip those.
+         */
+        private Received pollRegisterResponse(long timeoutMillis) {
+            var deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                var received = responses.poll(remaining);
+                if (received == null) {
+                    return null;
+                }
 
-            var packet = new DatagramPacket(registerRequest.array(), registerRequest.arrayOffset(), registerRequest.position());
-            packet.setAddress(this.address);
-            packet.setPort(CONTROL_PORT);
+                if (received.sender().equals(this.address) && !(received.feed() instanceof ControlFeedReader.Pong)) {
+                    return received;
+                }
+            }
+            return null;
+        }
 
-            for (int i = 0; i < 4; i++) {
-                this.socket.send(packet);
-                var rxBuffer = new byte[1024];
+        private static ByteBuffer registerRequest(byte[] signedData) {
+            var registerRequest = ByteBuffer.allocate(1024);
+            ControlRequestWriter.requestId(registerRequest, 100).registerBytes(signedData);
+            return registerRequest;
+        }
 
-                try {
-                    DatagramPacket rxPacket = new DatagramPacket(rxBuffer, 1024);
-                    this.socket.receive(rxPacket);
+        private PlayitControlChannel register(String secretKey) throws IOException {
+            MessageManager msg = MessageManager.get();
 
-                    var packetData = ByteBuffer.wrap(rxPacket.getData(), rxPacket.getOffset(), rxPacket.getLength());
-                    try {
-                        var response = ControlFeedReader.read(packetData);
-
-                        if (response instanceof ControlFeedReader.AgentRegistered registered) {
-                            var channel = new PlayitControlChannel();
-                            channel.apiClient = new ApiClient(secretKey);
-                            channel.socket = this.socket;
-                            channel.controlAddress = this.address;
-                            channel.registered = registered;
-                            channel.ogPong = this.pong;
-                            channel.latestPong = this.pong;
-
-                            this.socket = null;
-                            return channel;
-                        }
+            var client = new ApiClient(secretKey);
+
+            /* skip the HTTP round trip when the addresses haven't changed since the last signature */
+            var data = RegisterDataCache.get(secretKey, this.pong.clientAddr, this.pong.tunnelAddr);
+            var cached = data != null;
+            if (cached) {
+                msg.debug("Using cached agent register signature");
+            } else {
+                data = RegisterDataCache.sign(client, secretKey, this.pong.clientAddr, this.pong.tunnelAddr);
+            }
+
+            var registerRequest = registerRequest(data);
+
+            for (int i = 0; i < 4; i++) {
+                send(this.channel, registerRequest, this.address);
 
-                        if (response instanceof ControlFeedReader.Error error) {
-                            if (error == ControlFeedReader.Error.RequestQueued) {
-                                msg.debug("Request queued, retrying in 1s...");
+                var received = pollRegisterResponse(3000);
+                if (received == null) {
+                    // Expected during retries
+                    continue;
+                }
 
-                                try {
-                                    Thread.sleep(1000);
-                                } catch (InterruptedException ignore) {
-                                }
+                var response = received.feed();
+
+                if (response instanceof ControlFeedReader.AgentRegistered registered) {
+                    var channel = new PlayitControlChannel();
+                    channel.apiClient = client;
+                    channel.secretKey = secretKey;
+                    channel.channel = this.channel;
+                    channel.handler = this.handler;
+                    channel.controlAddress = this.address;
+                    channel.alternates = this.alternates;
+                    channel.registered = registered;
+                    channel.ogPong = this.pong;
+                    channel.latestPong = this.pong.copy();
+
+                    this.channel = null;
+                    return channel;
+                }
 
-                                continue;
-                            }
+                if (response instanceof ControlFeedReader.Error error) {
+                    if (error == ControlFeedReader.Error.RequestQueued) {
+                        msg.debug("Request queued, retrying in 1s...");
 
-                            msg.debug("Control feed error: " + error);
+                        try {
+                            Thread.sleep(1000);
+                        } catch (InterruptedException ignore) {
                         }
 
-                        break;
-                    } catch (DecodeException | BufferUnderflowException error) {
-                        msg.debug("Failed to decode register response");
+                        continue;
                     }
-                } catch (SocketTimeoutException ignore) {
-                    // Expected during retries
+
+                    if (cached && (error == ControlFeedReader.Error.InvalidSignature || error == ControlFeedReader.Error.Unauthorized)) {
+                        msg.debug("Cached register signature rejected, signing again");
+                        RegisterDataCache.invalidate(this.pong.tunnelAddr);
+                        cached = false;
+                        registerRequest = registerRequest(RegisterDataCache.sign(client, secretKey, this.pong.clientAddr, this.pong.tunnelAddr));
+                        continue;
+                    }
+
+                    msg.debug("Control feed error: " + error);
                 }
+
+                break;
             }
 
             throw new IOException("failed to setup channel");
@@ -0,0 +1,67 @@
+package gg.playit.control;
+
+import gg.playit.messages.ControlFeedReader;
+import gg.playit.messages.DecodeException;
+import gg.playit.minecraft.logger.MessageManager;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+
+/**
+ * Decodes control feed datagrams as they arrive and hands them to the current sink.
+ * During setup the sink feeds a queue, once registered it is the live control channel.
+ * Feed messages are decoder holders, a sink that keeps one past accept has to copy it.
+ */
+class ControlFeedHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+    interface Sink {
+        void accept(InetSocketAddress sender, ControlFeedReader.ControlFeed feed);
+
+        /**
+         * Packets from senders the sink doesn't expect are dropped without being decoded.
+         */
+        default boolean accepts(InetSocketAddress sender) {
+            return true;
+        }
+
+        default void decodeFailed(InetSocketAddress sender, RuntimeException error) {
+            MessageManager.get().debug("Failed to decode control feed from " + sender + ": " + error.getMessage());
+        }
+    }
+
+    volatile Sink sink;
+
+    /* the handler belongs to one channel, so its event loop is the only user of the decoder */
+    private final ControlFeedReader.Decoder decoder = new ControlFeedReader.Decoder();
+
+    ControlFeedHandler(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+        if (!sink.accepts(packet.sender())) {
+            MessageManager.get().debug("Packet from unexpected source " + packet.sender() + " dropped");
+            return;
+        }
+
+        var content = packet.content();
+
+        ControlFeedReader.ControlFeed feed;
+        try {
+            feed = decoder.decode(content.internalNioBuffer(content.readerIndex(), content.readableBytes()));
+        } catch (DecodeException | BufferUnderflowException error) {
+            sink.decodeFailed(packet.sender(), error);
+            return;
+        }
+
+        sink.accept(packet.sender(), feed);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        MessageManager.get().debug("Control channel error: " + cause.getMessage());
+    }
+}
@@ -5,125 +5,521 @@ import gg.playit.messages.ControlFeedReader;
 import gg.playit.messages.ControlRequestWriter;
 import gg.playit.messages.DecodeException;
 import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.io.Closeable;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.time.Instant;
-import java.util.Arrays;
-import java.util.Optional;
-
-import static gg.playit.control.ChannelSetup.CONTROL_PORT;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Registered control channel. Runs entirely on its Netty event loop: packets are handled
+ * as they arrive, timers send pings and renew the session ahead of its expiry, nothing
+ * blocks waiting for data.
+ */
 public class PlayitControlChannel implements Closeable {
+    private static final long PING_INTERVAL_MS = 5_000;
+    /* keep-alives go out this long before the session expires, minus up to RENEW_JITTER_MS */
+    private static final long RENEW_MARGIN_MS = 60_000;
+    private static final long RENEW_JITTER_MS = 5_000;
+    private static final long RENEW_RETRY_MS = 3_000;
+    /* keep-alives sent for one renewal before falling back to registering again */
+    private static final int RENEW_KEEP_ALIVES = 4;
+    private static final long PROBE_INTERVAL_MS = 30_000;
+    private static final int MIN_SAMPLES_TO_MOVE = 5;
+    private static final long MIN_IMPROVEMENT_MS = 10;
+    private static final long REGISTER_PREPARE_CHECK_MS = 30_000;
+    /* pings go out every 5s, three missed pongs in a row means the session is gone */
+    private static final long PONG_TIMEOUT_MS = 3 * PING_INTERVAL_MS;
+    /* an alternate that answered a probe this recently is a usable standby */
+    private static final long STANDBY_FRESH_MS = 3 * PROBE_INTERVAL_MS;
+    /* this many undecodable packets from the control address within the window closes the channel */
+    private static final int DECODE_FAILURE_LIMIT = 5;
+    private static final long DECODE_FAILURE_WINDOW_MS = 30_000;
+
     ApiClient apiClient;
-    DatagramSocket socket;
-    InetAddress controlAddress;
+    String secretKey;
+    Channel channel;
+    ControlFeedHandler handler;
+    InetSocketAddress controlAddress;
     ControlFeedReader.Pong ogPong;
+    /* updated in place on the event loop, the decoder's pong is only valid during onFeed */
     ControlFeedReader.Pong latestPong;
-    ControlFeedReader.AgentRegistered registered;
+    volatile ControlFeedReader.AgentRegistered registered;
+    /* the other control addresses discovery found, probed to see if one of them is closer */
+    InetSocketAddress[] alternates = new InetSocketAddress[0];
 
-    private final ByteBuffer sendBuffer = ByteBuffer.allocate(2048);
+    private final RttEstimator rtt = new RttEstimator();
+    private RttEstimator[] alternateRtt;
+    private ControlFeedReader.Pong[] alternatePongs;
+    private long[] alternatePongAt;
+    private long lastPongAt;
+    private int decodeFailures;
+    private long decodeFailureWindowStart;
 
-    private long lastKeepAlive;
-    private long lastPing;
+    private Listener listener;
+    private ScheduledFuture<?> pingTask;
+    private ScheduledFuture<?> renewTask;
+    /* expiresAt when the current renewal started, 0 while not renewing */
+    private long renewingExpiresAt;
+    private int renewAttempt;
+    private final RenewalStats renewalStats = new RenewalStats();
+    private ScheduledFuture<?> probeTask;
+    private ScheduledFuture<?> registerPrepareTask;
+    private volatile Throwable closeCause;
+    private volatile InetSocketAddress movingTo;
 
-    public static PlayitControlChannel setup(String secretKey) throws IOException {
+    public interface Listener {
+        /**
+         * Called on the control channel's event loop for every feed message. Pong and
+         * NewClient messages are reused by the decoder, copy anything kept past this call.
+         */
+        void onFeed(ControlFeedReader.ControlFeed feed) throws IOException;
+    }
+
+    public static PlayitControlChannel setup(String secretKey, EventLoopGroup group, Class<? extends DatagramChannel> channelClass) throws IOException {
         try {
             return ChannelSetup
                     .start()
-                    .findChannel()
+                    .findChannel(group, channelClass)
                     .authenticate(secretKey);
         } catch (DecodeException | BufferUnderflowException error) {
             throw new IOException("failed to encoding / decoding data", error);
         }
     }
 
-    public Optional<ControlFeedReader.ControlFeed> update() throws IOException {
-        try {
-            var now = Instant.now().toEpochMilli();
+    /**
+     * Starts dispatching feed messages to the listener and schedules pings and session renewal.
+     */
+    public void start(Listener listener) {
+        this.listener = listener;
+
+        alternateRtt = new RttEstimator[alternates.length];
+        alternatePongs = new ControlFeedReader.Pong[alternates.length];
+        alternatePongAt = new long[alternates.length];
+        for (var i = 0; i < alternates.length; ++i) {
+            alternateRtt[i] = new RttEstimator();
+            alternatePongs[i] = new ControlFeedReader.Pong();
+        }
+
+        lastPongAt = System.currentTimeMillis();
 
-            if (now - lastPing > 5_000) {
-                lastPing = now;
-                this.sendPing(now);
+        this.handler.sink = new ControlFeedHandler.Sink() {
+            @Override
+            public void accept(InetSocketAddress sender, ControlFeedReader.ControlFeed feed) {
+                onFeed(sender, feed);
             }
 
-            var tillExpire = this.registered.expiresAt - now;
-            if (tillExpire < 60_000 && 10_000 < now - lastKeepAlive) {
-                MessageManager.get().debug("Sending keep-alive");
-                lastKeepAlive = now;
+            @Override
+            public boolean accepts(InetSocketAddress sender) {
+                return sender.equals(controlAddress) || alternateIndex(sender) != -1;
+            }
 
-                this.sendKeepAlive();
+            @Override
+            public void decodeFailed(InetSocketAddress sender, RuntimeException error) {
+                onDecodeFailed(sender, error);
             }
+        };
+
+        var loop = channel.eventLoop();
+        pingTask = loop.scheduleAtFixedRate(this::sendPing, 0, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        loop.execute(this::scheduleRenewal);
 
-            this.socket.setSoTimeout(3_000);
+        registerPrepareTask = loop.scheduleAtFixedRate(this::prepareRegisterData, REGISTER_PREPARE_CHECK_MS, REGISTER_PREPARE_CHECK_MS, TimeUnit.MILLISECONDS);
 
-            DatagramPacket rxPacket = new DatagramPacket(new byte[2048], 0, 2048);
+        if (alternates.length != 0) {
+            probeTask = loop.scheduleAtFixedRate(this::probeAlternates, PING_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
 
-            try {
-                this.socket.receive(rxPacket);
-            } catch (SocketTimeoutException ignore) {
-                return Optional.empty();
+        channel.closeFuture().addListener(f -> {
+            pingTask.cancel(false);
+            if (renewTask != null) {
+                renewTask.cancel(false);
+            }
+            registerPrepareTask.cancel(false);
+            if (probeTask != null) {
+                probeTask.cancel(false);
             }
+        });
+    }
+
+    private void onFeed(InetSocketAddress sender, ControlFeedReader.ControlFeed feed) {
+        if (!sender.equals(controlAddress)) {
+            var alternate = alternateIndex(sender);
+            if (alternate != -1 && feed instanceof ControlFeedReader.Pong pong) {
+                var now = System.currentTimeMillis();
+                alternateRtt[alternate].record(pong.requestNow, pong.serverNow, now);
+                alternatePongs[alternate].copyFrom(pong);
+                alternatePongAt[alternate] = now;
 
-            if (!Arrays.equals(rxPacket.getAddress().getAddress(), this.controlAddress.getAddress()) || rxPacket.getPort() != CONTROL_PORT) {
-                MessageManager.get().debug("Packet from unexpected source ignored");
-                return Optional.empty();
+                considerMoving(alternate);
+                return;
             }
 
-            var buffer = ByteBuffer.wrap(
-                    rxPacket.getData(),
-                    rxPacket.getOffset(),
-                    rxPacket.getLength()
-            );
+            MessageManager.get().debug("Packet from unexpected source ignored");
+            return;
+        }
+
+        if (feed instanceof ControlFeedReader.Pong pong) {
+            lastPongAt = System.currentTimeMillis();
 
-            var read = ControlFeedReader.read(buffer);
+            /* pongs to discovery pings carry a zero request time */
+            if (pong.requestNow != 0) {
+                var now = System.currentTimeMillis();
+                rtt.record(pong.requestNow, pong.serverNow, now);
+                PlayitMetrics.get().controlRtt.record((now - pong.requestNow) * 1000);
+            }
 
-            if (read instanceof ControlFeedReader.Pong pong) {
-                this.latestPong = pong;
+            this.latestPong.copyFrom(pong);
 
-                if (pong.sessionExpireAt != 0) {
-                    this.registered.expiresAt = pong.sessionExpireAt;
-                }
-            } else if (read instanceof ControlFeedReader.AgentRegistered registered) {
-                this.registered = registered;
+            if (pong.sessionExpireAt != 0) {
+                var previous = this.registered.expiresAt;
+                this.registered.expiresAt = pong.sessionExpireAt;
+                sessionUpdated(previous);
             }
+        } else if (feed == ControlFeedReader.Error.InvalidSignature && renewingExpiresAt != 0) {
+            /* the signature the re-register used is no longer accepted, sign again for the next attempt */
+            MessageManager.get().debug("Register signature rejected while renewing, signing again");
+            RegisterDataCache.invalidate(latestPong.tunnelAddr);
+            RegisterDataCache.prepare(apiClient, secretKey, latestPong.clientAddr, latestPong.tunnelAddr);
+        } else if (feed instanceof ControlFeedReader.AgentRegistered registered) {
+            var previous = this.registered.expiresAt;
+            this.registered = registered;
+            sessionUpdated(previous);
+        }
 
-            return Optional.of(read);
+        try {
+            listener.onFeed(feed);
         } catch (Exception e) {
-            throw new IOException("got unexpected error", e);
+            failed(new IOException("got unexpected error", e));
         }
     }
 
-    private void sendPing(long now) throws IOException {
-        sendBuffer.clear();
-        ControlRequestWriter.requestId(sendBuffer, 100).ping(now, this.registered.id);
-        this.sendPacket();
+    /**
+     * A single bad packet is only logged, the channel is closed once the control address
+     * keeps sending packets that can't be decoded.
+     */
+    private void onDecodeFailed(InetSocketAddress sender, RuntimeException error) {
+        PlayitMetrics.get().controlDecodeFailures.increment();
+        MessageManager.get().debug("Failed to decode control feed from " + sender + ": " + error.getMessage());
+
+        if (!sender.equals(controlAddress)) {
+            return;
+        }
+
+        var now = System.currentTimeMillis();
+        if (now - decodeFailureWindowStart > DECODE_FAILURE_WINDOW_MS) {
+            decodeFailureWindowStart = now;
+            decodeFailures = 0;
+        }
+
+        if (++decodeFailures >= DECODE_FAILURE_LIMIT) {
+            failed(new IOException(decodeFailures + " undecodable control packets within " + DECODE_FAILURE_WINDOW_MS + "ms", error));
+        }
     }
 
-    private void sendKeepAlive() throws IOException {
-        sendBuffer.clear();
-        ControlRequestWriter.requestId(sendBuffer, 100).keepAlive(this.registered.id);
-        this.sendPacket();
+    private int alternateIndex(InetSocketAddress sender) {
+        for (var i = 0; i < alternates.length; ++i) {
+            if (alternates[i].equals(sender)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private void sendPacket() throws IOException {
-        DatagramPacket p = new DatagramPacket(sendBuffer.array(), sendBuffer.arrayOffset(), sendBuffer.position());
-        p.setAddress(this.controlAddress);
-        p.setPort(CONTROL_PORT);
-        this.socket.send(p);
+    private void probeAlternates() {
+        for (var alternate : alternates) {
+            var buffer = channel.alloc().ioBuffer(128);
+            var out = buffer.nioBuffer(0, buffer.capacity());
+            /* unauthenticated ping, the same one discovery sends */
+            ControlRequestWriter.requestId(out, 1).ping(System.currentTimeMillis(), null);
+            buffer.writerIndex(out.position());
+
+            channel.writeAndFlush(new DatagramPacket(buffer, alternate)).addListener(f -> {
+                if (!f.isSuccess()) {
+                    MessageManager.get().debug("Failed to probe " + alternate + ": " + f.cause().getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves to an alternate address once it is clearly closer than the current one. The
+     * channel closes itself and the next setup prefers the alternate.
+     */
+    private void considerMoving(int alternate) {
+        if (movingTo != null) {
+            return;
+        }
+
+        var candidate = alternateRtt[alternate];
+        if (candidate.getSampleCount() < MIN_SAMPLES_TO_MOVE || rtt.getSampleCount() < MIN_SAMPLES_TO_MOVE) {
+            return;
+        }
+
+        var current = rtt.getSmoothedRtt();
+        var improvement = Math.max(MIN_IMPROVEMENT_MS, current / 5);
+        if (candidate.getSmoothedRtt() + improvement > current) {
+            return;
+        }
+
+        var target = alternates[alternate];
+        if (!ChannelSetup.preferAddress(target.getAddress(), false)) {
+            return;
+        }
+
+        MessageManager.get().debug("Moving control channel to " + target + " (srtt " + candidate.getSmoothedRtt() + "ms vs " + current + "ms)");
+        movingTo = target;
+        channel.close();
+    }
+
+    /**
+     * Keeps a signed register payload ready for the current address and for the alternate a
+     * failover would move to, so neither has to wait on the API. Other probed addresses are
+     * never signed for, and nothing is signed again while the addresses stay the same.
+     */
+    private void prepareRegisterData() {
+        RegisterDataCache.prepare(apiClient, secretKey, latestPong.clientAddr, latestPong.tunnelAddr);
+
+        /*
+         * a failover rebinds the same local port, so the standby sees the client address it
+         * reported to our pings. That only holds if the NAT maps the port the same way for every
+         * destination, a differing port means the payload could never be used
+         */
+        var standby = standbyIndex(System.currentTimeMillis());
+        if (standby != -1) {
+            var pong = alternatePongs[standby];
+            if (pong.clientAddr.portNumber == latestPong.clientAddr.portNumber) {
+                RegisterDataCache.prepare(apiClient, secretKey, pong.clientAddr, pong.tunnelAddr);
+            }
+        }
+    }
+
+    /**
+     * Server time estimated from pong clock offsets, expiresAt is set by the server's clock.
+     */
+    private long serverNow() {
+        var now = System.currentTimeMillis();
+        return rtt.getSampleCount() == 0 ? now : now + rtt.getClockOffset();
+    }
+
+    private void scheduleRenewal() {
+        if (renewTask != null) {
+            renewTask.cancel(false);
+        }
+
+        var jitter = ThreadLocalRandom.current().nextLong(RENEW_JITTER_MS);
+        var delay = registered.expiresAt - RENEW_MARGIN_MS - jitter - serverNow();
+        renewTask = channel.eventLoop().schedule(this::renew, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends keep-alives until the session's expiry moves forward, then registers again with the
+     * cached signature. Runs until it succeeds: expiry never closes the channel, only the pong
+     * liveness check does, so new players keep getting admitted while renewal is retried.
+     */
+    private void renew() {
+        if (!channel.isActive()) {
+            return;
+        }
+
+        if (renewingExpiresAt == 0) {
+            renewingExpiresAt = registered.expiresAt;
+            renewAttempt = 0;
+            renewalStats.attempts++;
+        }
+
+        renewAttempt++;
+        if (renewAttempt <= RENEW_KEEP_ALIVES) {
+            MessageManager.get().debug("Sending keep-alive (attempt " + renewAttempt + ")");
+            sendKeepAlive();
+        } else {
+            reRegister();
+        }
+
+        var retry = RENEW_RETRY_MS * Math.min(renewAttempt, RENEW_KEEP_ALIVES) + ThreadLocalRandom.current().nextLong(1_000);
+        renewTask = channel.eventLoop().schedule(this::renew, retry, TimeUnit.MILLISECONDS);
+    }
+
+    private void reRegister() {
+        var data = RegisterDataCache.get(secretKey, latestPong.clientAddr, latestPong.tunnelAddr);
+        if (data == null) {
+            MessageManager.get().debug("Keep-alives unanswered, waiting on a fresh register signature");
+            RegisterDataCache.prepare(apiClient, secretKey, latestPong.clientAddr, latestPong.tunnelAddr);
+            return;
+        }
+
+        MessageManager.get().debug("Keep-alives unanswered, registering again");
+        renewalStats.reRegisters++;
+
+        var buffer = channel.alloc().ioBuffer(1024);
+        var out = buffer.nioBuffer(0, buffer.capacity());
+        ControlRequestWriter.requestId(out, 100).registerBytes(data);
+        this.sendPacket(buffer, out);
+    }
+
+    private void sessionUpdated(long previousExpiresAt) {
+        var expiresAt = registered.expiresAt;
+
+        if (renewingExpiresAt != 0 && expiresAt > renewingExpiresAt) {
+            renewalStats.succeeded++;
+            renewalStats.lastMarginMs = renewingExpiresAt - serverNow();
+            renewalStats.lastAttempts = renewAttempt;
+            renewingExpiresAt = 0;
+            scheduleRenewal();
+        } else if (renewingExpiresAt == 0 && expiresAt != previousExpiresAt) {
+            scheduleRenewal();
+        }
+    }
+
+
+    /**
+     * @return the alternate that answered a probe most recently with the lowest latency, or -1
+     */
+    private int standbyIndex(long now) {
+        var best = -1;
+        for (var i = 0; i < alternates.length; ++i) {
+            if (now - alternatePongAt[i] > STANDBY_FRESH_MS) {
+                continue;
+            }
+
+            if (best == -1 || alternateRtt[i].getSmoothedRtt() < alternateRtt[best].getSmoothedRtt()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pongs stopped arriving without any error, close so the manager reconnects. If an
+     * alternate answered probes recently it takes over directly.
+     */
+    private boolean checkLiveness() {
+        var now = System.currentTimeMillis();
+        var silentFor = now - lastPongAt;
+        if (silentFor < PONG_TIMEOUT_MS) {
+            return true;
+        }
+
+        var standby = standbyIndex(now);
+        if (standby != -1 && movingTo == null) {
+            var target = alternates[standby];
+            MessageManager.get().warn("No pong from control server for " + silentFor + "ms, failing over to " + target);
+            ChannelSetup.preferAddress(target.getAddress(), true);
+            movingTo = target;
+            channel.close();
+            return false;
+        }
+
+        failed(new IOException("no pong from control server for " + silentFor + "ms"));
+        return false;
+    }
+
+    private void sendPing() {
+        if (!checkLiveness()) {
+            return;
+        }
+
+        var buffer = channel.alloc().ioBuffer(128);
+        var out = buffer.nioBuffer(0, buffer.capacity());
+        ControlRequestWriter.requestId(out, 100).ping(System.currentTimeMillis(), this.registered.id);
+        this.sendPacket(buffer, out);
+    }
+
+    private void sendKeepAlive() {
+        var buffer = channel.alloc().ioBuffer(128);
+        var out = buffer.nioBuffer(0, buffer.capacity());
+        ControlRequestWriter.requestId(out, 100).keepAlive(this.registered.id);
+        this.sendPacket(buffer, out);
+    }
+
+    private final ChannelFutureListener sendFailed = f -> {
+        if (!f.isSuccess()) {
+            failed(new IOException("failed to send control packet", f.cause()));
+        }
+    };
+
+    private void sendPacket(ByteBuf buffer, ByteBuffer written) {
+        buffer.writerIndex(written.position());
+        channel.writeAndFlush(new DatagramPacket(buffer, controlAddress)).addListener(sendFailed);
+    }
+
+    private void failed(Throwable cause) {
+        if (closeCause == null) {
+            closeCause = cause;
+        }
+        channel.close();
+    }
+
+    /**
+     * Completes once the channel is closed, either by {@link #close()} or after an error.
+     */
+    public ChannelFuture closeFuture() {
+        return channel.closeFuture();
+    }
+
+    /**
+     * @return the address the channel closed itself to move to, null if it didn't
+     */
+    public InetSocketAddress movingTo() {
+        return movingTo;
+    }
+
+    /**
+     * @return why the channel closed itself, null if it was closed with {@link #close()} or to move
+     */
+    public Throwable closeCause() {
+        return closeCause;
+    }
+
+    public InetSocketAddress getControlAddress() {
+        return controlAddress;
+    }
+
+    /**
+     * @return RTT and clock offset estimates for the current control address
+     */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return session renewal counters, updated on the event loop
+     */
+    public RenewalStats getRenewalStats() {
+        return renewalStats;
+    }
+
+    /**
+     * @return milliseconds until the session expires by the server's clock
+     */
+    public long getSessionExpiresIn() {
+        return registered.expiresAt - serverNow();
+    }
+
+    /**
+     * @return a copy of the latest pong, fields may be mixed between two pongs if one arrives while copying
+     */
+    public ControlFeedReader.Pong getLatestPong() {
+        return latestPong.copy();
     }
 
     @Override
     public String toString() {
         return "ControlChannel{" +
                 "apiClient=" + apiClient +
-                ", socket=" + socket +
+                ", channel=" + channel +
                 ", controlAddress=" + controlAddress +
                 ", ogPong=" + ogPong +
                 ", latestPong=" + latestPong +
@@ -132,7 +528,44 @@ public class PlayitControlChannel implements Closeable {
     }
 
     @Override
-    public void close() throws IOException {
-        this.socket.close();
+    public void close() {
+        this.channel.close();
+    }
+
+    public static class RenewalStats {
+        volatile long attempts;
+        volatile long succeeded;
+        volatile long reRegisters;
+        volatile long lastMarginMs;
+        volatile int lastAttempts;
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return how often keep-alives went unanswered and the session was registered again
+         */
+        public long getReRegisters() {
+            return reRegisters;
+        }
+
+        /**
+         * @return how long before expiry the last renewal went through, in milliseconds
+         */
+        public long getLastMarginMs() {
+            return lastMarginMs;
+        }
+
+        /**
+         * @return keep-alives and re-registers the last renewal needed
+         */
+        public int getLastAttempts() {
+            return lastAttempts;
+        }
     }
 }
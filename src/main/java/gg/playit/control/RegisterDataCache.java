@@ -0,0 +1,116 @@
+package gg.playit.control;
+
+import gg.playit.api.ApiClient;
+import gg.playit.api.actions.SignAgentRegister;
+import gg.playit.messages.SocketAddr;
+import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.utils.DecoderException;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signed agent register payloads from the API, kept together with the addresses they were signed
+ * for, one per control server address. A reconnect that sees the same addresses in its pong
+ * registers without an HTTP call. There is no documented lifetime for a signature, so a payload
+ * is used until the control server rejects it, which invalidates it and signs again.
+ * <p>
+ * The live control channel only prepares payloads for its current address and its failover
+ * candidate, and only when the addresses change, so background signing stays bounded.
+ */
+final class RegisterDataCache {
+    /* keyed by the control server's tunnel address */
+    private static final ConcurrentHashMap<SocketAddr, Entry> entries = new ConcurrentHashMap<>();
+    private static final Set<SocketAddr> signing = ConcurrentHashMap.newKeySet();
+
+    private record Entry(String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr, byte[] data) {
+        boolean matches(String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr) {
+            return this.secretKey.equals(secretKey)
+                    && this.clientAddr.equals(clientAddr)
+                    && this.tunnelAddr.equals(tunnelAddr);
+        }
+    }
+
+    private RegisterDataCache() {
+    }
+
+    private static SocketAddr copy(SocketAddr addr) {
+        var copy = new SocketAddr();
+        copy.copyFrom(addr);
+        return copy;
+    }
+
+    /**
+     * @return the cached payload if it was signed for these addresses, otherwise null
+     */
+    static byte[] get(String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr) {
+        var current = entries.get(tunnelAddr);
+        if (current == null || !current.matches(secretKey, clientAddr, tunnelAddr)) {
+            return null;
+        }
+        return current.data;
+    }
+
+    /**
+     * Signs over HTTP and caches the result.
+     */
+    static byte[] sign(ApiClient client, String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr) throws IOException {
+        byte[] data;
+        try {
+            data = client.getSignedAgentRegisterData(request(clientAddr, tunnelAddr));
+        } catch (DecoderException e) {
+            throw new IOException("failed parse hex response from server", e);
+        }
+
+        store(secretKey, clientAddr, tunnelAddr, data);
+        return data;
+    }
+
+    private static SignAgentRegister request(SocketAddr clientAddr, SocketAddr tunnelAddr) {
+        var req = new SignAgentRegister();
+        req.agentVersion = 10_001;
+        req.clientAddr = clientAddr;
+        req.tunnelAddr = tunnelAddr;
+        return req;
+    }
+
+    private static void store(String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr, byte[] data) {
+        var key = copy(tunnelAddr);
+        entries.put(key, new Entry(secretKey, copy(clientAddr), key, data));
+    }
+
+    static void invalidate(SocketAddr tunnelAddr) {
+        entries.remove(tunnelAddr);
+    }
+
+    /**
+     * Signs with an async API call if there's no payload for these addresses yet. Never blocks
+     * the caller.
+     */
+    static void prepare(ApiClient client, String secretKey, SocketAddr clientAddr, SocketAddr tunnelAddr) {
+        var current = entries.get(tunnelAddr);
+        if (current != null && current.matches(secretKey, clientAddr, tunnelAddr)) {
+            return;
+        }
+
+        var clientCopy = copy(clientAddr);
+        var tunnelCopy = copy(tunnelAddr);
+        if (!signing.add(tunnelCopy)) {
+            return;
+        }
+
+        client.getSignedAgentRegisterDataAsync(request(clientCopy, tunnelCopy)).whenComplete((data, error) -> {
+            if (error != null) {
+                var cause = error instanceof CompletionException ? error.getCause() : error;
+                MessageManager.get().debug("Failed to prepare agent register signature: " + cause.getMessage());
+            } else {
+                store(secretKey, clientCopy, tunnelCopy, data);
+                MessageManager.get().debug("Prepared agent register signature for " + tunnelCopy);
+            }
+
+            signing.remove(tunnelCopy);
+        });
+    }
+}
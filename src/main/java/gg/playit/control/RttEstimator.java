@@ -0,0 +1,121 @@
+package gg.playit.control;
+
+import java.util.Arrays;
+
+/**
+ * Round trip time and clock offset estimates built from control pongs. The smoothed RTT
+ * follows RFC 6298, percentiles are taken over the last {@link #WINDOW} samples.
+ * Samples are recorded on the control channel's event loop, reads can come from any thread.
+ */
+public class RttEstimator {
+    private static final int WINDOW = 64;
+
+    private final long[] samples = new long[WINDOW];
+    private long sampleCount;
+    private long lastRtt = -1;
+    private long minRtt = -1;
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private double clockOffset;
+
+    /**
+     * @param requestNow  our clock when the ping was sent, echoed back in the pong
+     * @param serverNow   the control server's clock when it answered
+     * @param receivedAt  our clock when the pong arrived
+     */
+    public synchronized void record(long requestNow, long serverNow, long receivedAt) {
+        long rtt = receivedAt - requestNow;
+        if (rtt < 0) {
+            return;
+        }
+
+        /* assume the pong was sent halfway through the round trip */
+        double offset = serverNow - (requestNow + rtt / 2.0);
+
+        if (sampleCount == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+            clockOffset = offset;
+            minRtt = rtt;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+            clockOffset += (offset - clockOffset) / 8;
+            minRtt = Math.min(minRtt, rtt);
+        }
+
+        samples[(int) (sampleCount % WINDOW)] = rtt;
+        sampleCount++;
+        lastRtt = rtt;
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the latest RTT in milliseconds, -1 without samples
+     */
+    public synchronized long getLastRtt() {
+        return lastRtt;
+    }
+
+    /**
+     * @return the smallest RTT seen in milliseconds, -1 without samples
+     */
+    public synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    /**
+     * @return the smoothed RTT in milliseconds, -1 without samples
+     */
+    public synchronized long getSmoothedRtt() {
+        return Math.round(smoothedRtt);
+    }
+
+    public synchronized long getRttVariance() {
+        return Math.round(rttVariance);
+    }
+
+    /**
+     * @return how far the control server's clock is ahead of ours in milliseconds
+     */
+    public synchronized long getClockOffset() {
+        return Math.round(clockOffset);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the RTT percentile over recent samples in milliseconds, -1 without samples
+     */
+    public long percentile(double percentile) {
+        long[] window;
+        synchronized (this) {
+            if (sampleCount == 0) {
+                return -1;
+            }
+            window = Arrays.copyOf(samples, (int) Math.min(sampleCount, WINDOW));
+        }
+
+        Arrays.sort(window);
+        int index = (int) Math.ceil(percentile / 100 * window.length) - 1;
+        return window[Math.max(0, Math.min(index, window.length - 1))];
+    }
+
+    @Override
+    public String toString() {
+        if (getSampleCount() == 0) {
+            return "RttEstimator{no samples}";
+        }
+
+        return "RttEstimator{" +
+                "srtt=" + getSmoothedRtt() +
+                ", rttvar=" + getRttVariance() +
+                ", min=" + getMinRtt() +
+                ", p50=" + percentile(50) +
+                ", p99=" + percentile(99) +
+                ", clockOffset=" + getClockOffset() +
+                '}';
+    }
+}
@@ -1,92 +1,129 @@
 package gg.playit.messages;
 
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class ControlFeedReader {
 
+    /**
+     * Decodes a message into freshly allocated objects owned by the caller.
+     */
     public static ControlFeed read(ByteBuffer in) {
-        in.order(ByteOrder.BIG_ENDIAN);
-
-        var feedType = in.getInt();
-        /* Response */
-        if (feedType == 1) {
-            var requestId = in.getLong();
-
-            var responseType = in.getInt();
-
-            /* Pong */
-            if (responseType == 1) {
-                var pong = new Pong();
-                pong.readFrom(requestId, in);
-                return pong;
-            }
-
-            if (responseType == 2) {
-                return Error.InvalidSignature;
-            }
-
-            if (responseType == 3) {
-                return Error.Unauthorized;
-            }
+        return new Decoder().decode(in);
+    }
 
-            if (responseType == 4) {
-                return Error.RequestQueued;
-            }
+    /**
+     * Reusable decoder for a single thread. Pong and NewClient messages are decoded into
+     * holders owned by the decoder, so decoding a Pong allocates nothing. The returned
+     * holder is overwritten by the next call to {@link #decode(ByteBuffer)}, use
+     * {@link ControlFeed#copy()} to keep it around.
+     */
+    public static class Decoder {
+        private final Pong pong = new Pong();
+        private final NewClient newClient = new NewClient();
+
+        public ControlFeed decode(ByteBuffer in) {
+            in.order(ByteOrder.BIG_ENDIAN);
 
-            if (responseType == 5) {
-                return Error.TryAgainLater;
+            var feedType = in.getInt();
+            /* Response */
+            if (feedType == 1) {
+                var requestId = in.getLong();
+
+                var responseType = in.getInt();
+
+                /* Pong */
+                if (responseType == 1) {
+                    pong.readFrom(requestId, in);
+                    return pong;
+                }
+
+                if (responseType == 2) {
+                    return Error.InvalidSignature;
+                }
+
+                if (responseType == 3) {
+                    return Error.Unauthorized;
+                }
+
+                if (responseType == 4) {
+                    return Error.RequestQueued;
+                }
+
+                if (responseType == 5) {
+                    return Error.TryAgainLater;
+                }
+
+                /* rare and kept by the control channel, not worth pooling */
+                if (responseType == 6) {
+                    var res = new AgentRegistered();
+                    res.requestId = requestId;
+                    res.id = new AgentSessionId();
+                    res.id.readFrom(in);
+                    res.expiresAt = in.getLong();
+                    return res;
+                }
+
+                throw new DecodeException("response type not implemented yet: " + responseType);
             }
 
-            if (responseType == 6) {
-                var res = new AgentRegistered();
-                res.requestId = requestId;
-                res.id = new AgentSessionId();
-                res.id.readFrom(in);
-                res.expiresAt = in.getLong();
-                return res;
+            if (feedType == 2) {
+                newClient.readFrom(in);
+                return newClient;
             }
 
-            throw new DecodeException("response type not implemented yet: " + responseType);
-        }
-
-        if (feedType == 2) {
-            var res = new NewClient();
-            res.connectAddr = new SocketAddr();
-            res.connectAddr.readFrom(in);
-
-            res.peerAddr = new SocketAddr();
-            res.peerAddr.readFrom(in);
-
-            res.claimAddress = new SocketAddr();
-            res.claimAddress.readFrom(in);
-
-            var tokenLength = in.getLong();
-            res.claimToken = new byte[(int) tokenLength];
-            in.get(res.claimToken);
-
-            res.tunnelServerId = in.getLong();
-            res.dataCenterId = in.getInt();
-
-            return res;
+            throw new DecodeException("feed type not implemented yet: " + feedType);
         }
-
-        throw new DecodeException("feed type not implemented yet: " + feedType);
     }
 
     public interface ControlFeed {
+        /**
+         * @return a copy that isn't shared with a {@link Decoder}
+         */
+        default ControlFeed copy() {
+            return this;
+        }
     }
 
     public static class NewClient implements ControlFeed {
-        public SocketAddr connectAddr;
-        public SocketAddr peerAddr;
-        public SocketAddr claimAddress;
+        public SocketAddr connectAddr = new SocketAddr();
+        public SocketAddr peerAddr = new SocketAddr();
+        public SocketAddr claimAddress = new SocketAddr();
         public byte[] claimToken;
         public long tunnelServerId;
         public int dataCenterId;
 
+        private void readFrom(ByteBuffer in) {
+            connectAddr.readFrom(in);
+            peerAddr.readFrom(in);
+            claimAddress.readFrom(in);
+
+            var tokenLength = (int) in.getLong();
+            if (tokenLength < 0 || tokenLength > in.remaining()) {
+                throw new DecodeException("invalid claim token length: " + tokenLength);
+            }
+            if (claimToken == null || claimToken.length != tokenLength) {
+                claimToken = new byte[tokenLength];
+            }
+            in.get(claimToken);
+
+            tunnelServerId = in.getLong();
+            dataCenterId = in.getInt();
+        }
+
+        @Override
+        public NewClient copy() {
+            var copy = new NewClient();
+            copy.connectAddr.copyFrom(connectAddr);
+            copy.peerAddr.copyFrom(peerAddr);
+            copy.claimAddress.copyFrom(claimAddress);
+            copy.claimToken = claimToken.clone();
+            copy.tunnelServerId = tunnelServerId;
+            copy.dataCenterId = dataCenterId;
+            return copy;
+        }
+
         @Override
         public String toString() {
             return "NewClient{" +
@@ -129,8 +166,8 @@ public class ControlFeedReader {
         public long serverNow;
         public long serverId;
         public int dataCenterId;
-        public SocketAddr clientAddr;
-        public SocketAddr tunnelAddr;
+        public SocketAddr clientAddr = new SocketAddr();
+        public SocketAddr tunnelAddr = new SocketAddr();
         public long sessionExpireAt;
 
         private void readFrom(long requestId, ByteBuffer in) {
@@ -143,10 +180,7 @@ public class ControlFeedReader {
             serverId = in.getLong();
             dataCenterId = in.getInt();
 
-            clientAddr = new SocketAddr();
             clientAddr.readFrom(in);
-
-            tunnelAddr = new SocketAddr();
             tunnelAddr.readFrom(in);
 
             byte hasSessionExpireAt = in.get();
@@ -159,6 +193,26 @@ public class ControlFeedReader {
             }
         }
 
+        /**
+         * Overwrites this pong with the values of another, reusing the address arrays.
+         */
+        public Pong copyFrom(Pong other) {
+            requestId = other.requestId;
+            requestNow = other.requestNow;
+            serverNow = other.serverNow;
+            serverId = other.serverId;
+            dataCenterId = other.dataCenterId;
+            clientAddr.copyFrom(other.clientAddr);
+            tunnelAddr.copyFrom(other.tunnelAddr);
+            sessionExpireAt = other.sessionExpireAt;
+            return this;
+        }
+
+        @Override
+        public Pong copy() {
+            return new Pong().copyFrom(this);
+        }
+
         @Override
         public String toString() {
             return "Pong{" +
@@ -4,6 +4,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class SocketAddr {
     public byte[] ipBytes;
@@ -27,63 +28,84 @@ public class SocketAddr {
         }
     }
 
+    /**
+     * Reads into this address, the existing ipBytes array is reused if it has the right length.
+     */
     public void readFrom(ByteBuffer in) {
         var b = in.get();
 
+        int length;
         if (b == 4) {
-            ipBytes = new byte[4];
+            length = 4;
         } else if (b == 6) {
-            ipBytes = new byte[16];
+            length = 16;
         } else {
             throw new DecodeException("invalid socket addr id: " + (int) b);
         }
 
+        if (ipBytes == null || ipBytes.length != length) {
+            ipBytes = new byte[length];
+        }
+
         in.get(ipBytes);
         portNumber = in.getShort();
     }
 
-    public String ipString() {
-        if (ipBytes.length == 4) {
-            return String.format(
-                    "%s.%s.%s.%s",
-                    Byte.toUnsignedInt(ipBytes[0]), Byte.toUnsignedInt(ipBytes[1]),
-                    Byte.toUnsignedInt(ipBytes[2]), Byte.toUnsignedInt(ipBytes[3])
-            );
+    public void copyFrom(SocketAddr other) {
+        if (ipBytes != null && ipBytes.length == other.ipBytes.length) {
+            System.arraycopy(other.ipBytes, 0, ipBytes, 0, ipBytes.length);
+        } else {
+            ipBytes = other.ipBytes.clone();
         }
+        portNumber = other.portNumber;
+    }
 
-        if (ipBytes.length == 16) {
-            var sb = new StringBuilder();
-
-            for (var i = 0; i < 16; ++i) {
-                var b = ipBytes[i];
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SocketAddr other)) return false;
+        return portNumber == other.portNumber && Arrays.equals(ipBytes, other.ipBytes);
+    }
 
-                if ((i % 2) == 0 && i != 0) {
-                    sb.append(':');
-                }
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(ipBytes) + portNumber;
+    }
 
-                sb.append(String.format("%02x", b));
-            }
+    public String ipString() {
+        return appendIp(new StringBuilder(39)).toString();
+    }
 
-            return sb.toString();
+    @Override
+    public String toString() {
+        var sb = new StringBuilder(47);
+        if (ipBytes.length == 16) {
+            sb.append('[');
+            appendIp(sb);
+            sb.append(']');
+        } else {
+            appendIp(sb);
         }
 
-        throw new RuntimeException("invalid ip length: " + ipBytes.length);
+        sb.append(':');
+        sb.append(Short.toUnsignedInt(portNumber));
+        return sb.toString();
     }
 
-    @Override
-    public String toString() {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private StringBuilder appendIp(StringBuilder sb) {
         if (ipBytes.length == 4) {
-            return String.format(
-                    "%s.%s.%s.%s:%s",
-                    Byte.toUnsignedInt(ipBytes[0]), Byte.toUnsignedInt(ipBytes[1]),
-                    Byte.toUnsignedInt(ipBytes[2]), Byte.toUnsignedInt(ipBytes[3]),
-                    Short.toUnsignedInt(portNumber)
-            );
+            for (var i = 0; i < 4; ++i) {
+                if (i != 0) {
+                    sb.append('.');
+                }
+                sb.append(Byte.toUnsignedInt(ipBytes[i]));
+            }
+            return sb;
         }
-        if (ipBytes.length == 16) {
-            var sb = new StringBuilder();
-            sb.append('[');
 
+        if (ipBytes.length == 16) {
             for (var i = 0; i < 16; ++i) {
                 var b = ipBytes[i];
 
@@ -91,13 +113,9 @@ public class SocketAddr {
                     sb.append(':');
                 }
 
-                sb.append(String.format("%02x", b));
+                sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
             }
-
-            sb.append("]:");
-            sb.append(Short.toUnsignedInt(portNumber));
-
-            return sb.toString();
+            return sb;
         }
 
         throw new RuntimeException("invalid ip length: " + ipBytes.length);
@@ -0,0 +1,114 @@
+package gg.playit.minecraft;
+
+import gg.playit.messages.ControlFeedReader;
+import gg.playit.messages.SocketAddr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free multi-producer single-consumer ring of preallocated NewClient slots.
+ * The control channel copies decoded NewClient messages in, an event loop drains them and
+ * does the actual admission work.
+ */
+class AdmissionQueue {
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /* only touched by the consumer */
+    private long head;
+
+    AdmissionQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+
+        slots = new Slot[capacity];
+        mask = capacity - 1;
+        for (var i = 0; i < capacity; ++i) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    /**
+     * Copies the client into a free slot.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(ControlFeedReader.NewClient client, long receivedAt) {
+        Slot slot;
+        long position;
+
+        while (true) {
+            position = tail.get();
+            slot = slots[(int) (position & mask)];
+
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+
+        slot.connectAddr.copyFrom(client.connectAddr);
+        slot.peerAddr.copyFrom(client.peerAddr);
+        slot.claimAddress.copyFrom(client.claimAddress);
+        if (slot.claimToken == null || slot.claimToken.length != client.claimToken.length) {
+            slot.claimToken = client.claimToken.clone();
+        } else {
+            System.arraycopy(client.claimToken, 0, slot.claimToken, 0, slot.claimToken.length);
+        }
+        slot.tunnelServerId = client.tunnelServerId;
+        slot.dataCenterId = client.dataCenterId;
+        slot.receivedAt = receivedAt;
+
+        /* publishes the slot to the consumer */
+        slot.sequence = position + 1;
+        return true;
+    }
+
+    /**
+     * Consumer only. The slot stays owned by the consumer until {@link #release(Slot)}.
+     *
+     * @return the next filled slot, or null if the queue is empty
+     */
+    Slot peek() {
+        var slot = slots[(int) (head & mask)];
+        if (slot.sequence != head + 1) {
+            return null;
+        }
+        return slot;
+    }
+
+    /**
+     * Consumer only, hands the slot from {@link #peek()} back to producers.
+     */
+    void release(Slot slot) {
+        slot.sequence = head + slots.length;
+        head++;
+    }
+
+    boolean isEmpty() {
+        return slots[(int) (head & mask)].sequence != head + 1;
+    }
+
+    static class Slot {
+        volatile long sequence;
+
+        final SocketAddr connectAddr = new SocketAddr();
+        final SocketAddr peerAddr = new SocketAddr();
+        final SocketAddr claimAddress = new SocketAddr();
+        /* reused between clients, copy before keeping it */
+        byte[] claimToken;
+        long tunnelServerId;
+        int dataCenterId;
+        /* System.nanoTime() when the control channel decoded the client */
+        long receivedAt;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package gg.playit.minecraft;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+
+/**
+ * Kernel splice relay between two epoll channels. Data is moved between the
+ * sockets through a pipe without being copied into the JVM.
+ * <p>
+ * Kept in its own class so the epoll classes are only loaded when splicing is used.
+ */
+final class EpollSplice {
+    private EpollSplice() {
+    }
+
+    /**
+     * splice(2) requires level-triggered mode, which can only be set before the channel is registered.
+     */
+    static void levelTriggered(Bootstrap bootstrap) {
+        bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+    }
+
+    static boolean canSplice(Channel a, Channel b) {
+        if (!(a instanceof AbstractEpollStreamChannel epollA) || !(b instanceof AbstractEpollStreamChannel epollB)) {
+            return false;
+        }
+
+        return a.eventLoop() == b.eventLoop()
+                && epollA.config().getEpollMode() == EpollMode.LEVEL_TRIGGERED
+                && epollB.config().getEpollMode() == EpollMode.LEVEL_TRIGGERED;
+    }
+
+    /**
+     * Splices in both directions until either channel is closed.
+     *
+     * @return futures for a to b and b to a, both fail once the relay stops
+     */
+    static ChannelFuture[] relay(Channel a, Channel b) {
+        var epollA = (AbstractEpollStreamChannel) a;
+        var epollB = (AbstractEpollStreamChannel) b;
+
+        return new ChannelFuture[]{
+                epollA.spliceTo(epollB, Integer.MAX_VALUE),
+                epollB.spliceTo(epollA, Integer.MAX_VALUE)
+        };
+    }
+}
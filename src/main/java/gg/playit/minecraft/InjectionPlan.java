@@ -0,0 +1,228 @@
+package gg.playit.minecraft;
+
+import gg.playit.minecraft.logger.MessageManager;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import org.bukkit.Server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Everything needed to hand a tunnel channel straight to the Minecraft server's network stack.
+ * Reflection happens once in {@link #resolve(Server)}, setting up a connection afterwards only
+ * invokes the cached method handles.
+ */
+public class InjectionPlan {
+    private final Object serverConnection;
+
+    /* all handles are adapted to generic (Object) signatures so they can be called with invokeExact */
+    private final MethodHandle newLegacyPingHandler;
+    private final MethodHandle newPacketSplitter;
+    private final MethodHandle newPacketDecoder;
+    private final MethodHandle newPacketPrepender;
+    private final MethodHandle newPacketEncoder;
+    private final MethodHandle newNetworkManager;
+    private final MethodHandle newHandshakeListener;
+    private final MethodHandle setListener;
+    private final MethodHandle getConnections;
+    private final MethodHandle setRemoteAddress;
+
+    private InjectionPlan(
+            Object serverConnection,
+            MethodHandle newLegacyPingHandler,
+            MethodHandle newPacketSplitter,
+            MethodHandle newPacketDecoder,
+            MethodHandle newPacketPrepender,
+            MethodHandle newPacketEncoder,
+            MethodHandle newNetworkManager,
+            MethodHandle newHandshakeListener,
+            MethodHandle setListener,
+            MethodHandle getConnections,
+            MethodHandle setRemoteAddress
+    ) {
+        this.serverConnection = serverConnection;
+        this.newLegacyPingHandler = generic(newLegacyPingHandler);
+        this.newPacketSplitter = generic(newPacketSplitter);
+        this.newPacketDecoder = generic(newPacketDecoder);
+        this.newPacketPrepender = generic(newPacketPrepender);
+        this.newPacketEncoder = generic(newPacketEncoder);
+        this.newNetworkManager = generic(newNetworkManager);
+        this.newHandshakeListener = generic(newHandshakeListener);
+        this.setListener = generic(setListener);
+        this.getConnections = generic(getConnections);
+        this.setRemoteAddress = setRemoteAddress == null ? null : generic(setRemoteAddress);
+    }
+
+    /**
+     * Resolves and checks every lookup channel injection needs.
+     *
+     * @return the plan, or null if this server doesn't support injection
+     */
+    public static InjectionPlan resolve(Server server) {
+        MessageManager msg = MessageManager.get();
+        ReflectionHelper reflect = new ReflectionHelper();
+
+        Object minecraftServer = reflect.getMinecraftServer(server);
+        if (minecraftServer == null) {
+            msg.debug("Reflection: MC server not found");
+            return null;
+        }
+
+        Object serverConnection = reflect.serverConnectionFromMCServer(minecraftServer);
+        if (serverConnection == null) {
+            msg.debug("Reflection: ServerConnection not found");
+            return null;
+        }
+
+        MethodHandle legacyPingHandler = reflect.legacyPingHandlerConstructor();
+        if (legacyPingHandler == null) {
+            msg.debug("Reflection: LegacyPingHandler unavailable");
+            return null;
+        }
+
+        MethodHandle packetSplitter = reflect.packetSplitterConstructor();
+        if (packetSplitter == null) {
+            msg.debug("Reflection: PacketSplitter unavailable");
+            return null;
+        }
+
+        MethodHandle packetDecoder = reflect.serverBoundPacketDecoderConstructor();
+        if (packetDecoder == null) {
+            msg.debug("Reflection: PacketDecoder unavailable");
+            return null;
+        }
+
+        MethodHandle packetPrepender = reflect.packetPrependerConstructor();
+        if (packetPrepender == null) {
+            msg.debug("Reflection: PacketPrepender unavailable");
+            return null;
+        }
+
+        MethodHandle packetEncoder = reflect.clientBoundPacketEncoderConstructor();
+        if (packetEncoder == null) {
+            msg.debug("Reflection: PacketEncoder unavailable");
+            return null;
+        }
+
+        Integer rateLimitNullable = reflect.getRateLimitFromMCServer(minecraftServer);
+        if (rateLimitNullable == null) {
+            rateLimitNullable = 0;
+        }
+
+        int rateLimit = rateLimitNullable;
+
+        MethodHandle networkManager;
+        if (rateLimit > 0) {
+            networkManager = reflect.networkManagerServerConstructor(rateLimit);
+        } else {
+            networkManager = reflect.serverNetworkManagerConstructor();
+        }
+
+        if (networkManager == null) {
+            msg.debug("Reflection: NetworkManager unavailable");
+            return null;
+        }
+
+        MethodHandle handshakeListener = reflect.handshakeListenerConstructor();
+        if (handshakeListener == null) {
+            msg.debug("Reflection: HandshakeListener unavailable");
+            return null;
+        }
+
+        MethodHandle setListener = reflect.networkManagerListenerSetter();
+        if (setListener == null) {
+            msg.debug("Reflection: Failed to find listener setter");
+            return null;
+        }
+
+        MethodHandle getConnections = reflect.serverConnectionsGetter();
+        if (getConnections == null) {
+            msg.debug("Reflection: Failed to find connections list");
+            return null;
+        }
+
+        MethodHandle setRemoteAddress = reflect.remoteAddressSetter();
+        if (setRemoteAddress == null) {
+            msg.debug("Could not find remote address field, real IPs will not be shown");
+        }
+
+        return new InjectionPlan(
+                serverConnection,
+                MethodHandles.insertArguments(legacyPingHandler, 0, serverConnection),
+                packetSplitter,
+                packetDecoder,
+                packetPrepender,
+                packetEncoder,
+                networkManager,
+                MethodHandles.insertArguments(handshakeListener, 0, minecraftServer),
+                setListener,
+                MethodHandles.insertArguments(getConnections, 0, serverConnection),
+                setRemoteAddress
+        );
+    }
+
+    private static MethodHandle generic(MethodHandle handle) {
+        return handle.asType(handle.type().generic());
+    }
+
+    public Object getServerConnection() {
+        return serverConnection;
+    }
+
+    /**
+     * Creates the server side handlers for one connection, with the network manager's
+     * packet listener already set to a fresh handshake listener.
+     */
+    public Handlers newHandlers() throws Throwable {
+        var handlers = new Handlers();
+        handlers.legacyPing = (ChannelHandler) (Object) newLegacyPingHandler.invokeExact();
+        handlers.splitter = (ChannelHandler) (Object) newPacketSplitter.invokeExact();
+        handlers.decoder = (ChannelHandler) (Object) newPacketDecoder.invokeExact();
+        handlers.prepender = (ChannelHandler) (Object) newPacketPrepender.invokeExact();
+        handlers.encoder = (ChannelHandler) (Object) newPacketEncoder.invokeExact();
+
+        Object networkManager = (Object) newNetworkManager.invokeExact();
+        Object handshakeListener = (Object) newHandshakeListener.invokeExact(networkManager);
+        Object ignore = (Object) setListener.invokeExact(networkManager, handshakeListener);
+
+        handlers.networkManager = (ChannelHandler) networkManager;
+        return handlers;
+    }
+
+    public boolean setRemoteAddress(Channel channel, SocketAddress address) {
+        if (setRemoteAddress == null) {
+            return false;
+        }
+
+        try {
+            Object ignore = (Object) setRemoteAddress.invokeExact((Object) channel, (Object) address);
+            return true;
+        } catch (Throwable error) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean addToServerConnections(ChannelHandler networkManager) {
+        try {
+            var connections = (List<Object>) (Object) getConnections.invokeExact();
+            connections.add(networkManager);
+            return true;
+        } catch (Throwable e) {
+            MessageManager.get().debug("Reflection: Failed to add to connections: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public static class Handlers {
+        public ChannelHandler legacyPing;
+        public ChannelHandler splitter;
+        public ChannelHandler decoder;
+        public ChannelHandler prepender;
+        public ChannelHandler encoder;
+        public ChannelHandler networkManager;
+    }
+}
@@ -0,0 +1,92 @@
+package gg.playit.minecraft;
+
+import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.metrics.Histogram;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+
+/**
+ * System.nanoTime() timestamps of the stages a tunneled connection goes through until the
+ * local server has it. Each stage is written by the thread that completes it, and every
+ * stage hands off to the next through a Netty task or future, which orders the writes.
+ */
+final class JoinTrace {
+    private final long tunnelServerId;
+    private final int dataCenterId;
+
+    /* control channel decoded the NewClient */
+    private final long receivedAt;
+    /* admission loop picked it up */
+    private long admittedAt;
+    /* TCP connection to the tunnel claim address is up */
+    private long connectedAt;
+    /* tunnel server confirmed the claim with 8 bytes */
+    private long confirmedAt;
+    /* injected into the server or connected to it */
+    private long readyAt;
+
+    JoinTrace(long receivedAt, long tunnelServerId, int dataCenterId) {
+        this.receivedAt = receivedAt;
+        this.tunnelServerId = tunnelServerId;
+        this.dataCenterId = dataCenterId;
+    }
+
+    void admitted() {
+        admittedAt = System.nanoTime();
+    }
+
+    void connected() {
+        connectedAt = System.nanoTime();
+    }
+
+    void confirmed() {
+        confirmedAt = System.nanoTime();
+    }
+
+    /**
+     * @return microseconds from admission to the claim confirmation
+     */
+    long claimMicros() {
+        return micros(admittedAt, confirmedAt);
+    }
+
+    /**
+     * Records the stage histograms and logs the breakdown if the whole setup was slower
+     * than the configured threshold.
+     *
+     * @param path INJECTED, PROXY or SPLICE
+     */
+    void ready(PlayitConnectionTracker.ForwardPath path, TunnelSettings settings) {
+        readyAt = System.nanoTime();
+
+        var metrics = PlayitMetrics.get();
+        Histogram handoff = path == PlayitConnectionTracker.ForwardPath.INJECTED ? metrics.joinInject : metrics.joinAccept;
+
+        metrics.joinQueue.record(micros(receivedAt, admittedAt));
+        metrics.joinConnect.record(micros(admittedAt, connectedAt));
+        metrics.joinConfirm.record(micros(connectedAt, confirmedAt));
+        handoff.record(micros(confirmedAt, readyAt));
+        metrics.joinTotal.record(micros(receivedAt, readyAt));
+
+        long totalMs = (readyAt - receivedAt) / 1_000_000;
+        if (settings.slowJoinThresholdMs > 0 && totalMs >= settings.slowJoinThresholdMs) {
+            MessageManager.get().warn("Slow connection setup: " + totalMs + "ms " + breakdown(path)
+                    + " (tunnel server " + tunnelServerId + ", data center " + dataCenterId + ")");
+        }
+    }
+
+    private String breakdown(PlayitConnectionTracker.ForwardPath path) {
+        var handoff = path == PlayitConnectionTracker.ForwardPath.INJECTED ? "inject " : "server accept ";
+        return "[control queue " + millis(receivedAt, admittedAt)
+                + ", claim connect " + millis(admittedAt, connectedAt)
+                + ", claim confirm " + millis(connectedAt, confirmedAt)
+                + ", " + handoff + millis(confirmedAt, readyAt) + "]";
+    }
+
+    private static long micros(long from, long to) {
+        return (to - from) / 1000;
+    }
+
+    private static String millis(long from, long to) {
+        return String.format("%.1fms", (to - from) / 1_000_000.0);
+    }
+}
@@ -0,0 +1,165 @@
+package gg.playit.minecraft;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gg.playit.api.models.TunnelType;
+import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.utils.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Last verified agent keys and tunnels, stored in the plugin folder so the next start can skip
+ * the status and tunnel list calls and verify against the API in the background. Registering
+ * the control channel still signs over the API, that payload is bound to the client address
+ * of the new control socket and can't be stored. The secret itself stays in config.yml, the
+ * file only holds a hash to match against it.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class KeysStateFile {
+    private static final String FILE_NAME = "agent-state.json";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @JsonProperty("secret_hash")
+    public String secretHash;
+
+    @JsonProperty("agent_id")
+    public String agentId;
+
+    @JsonProperty("tunnel_address")
+    public String tunnelAddress;
+
+    @JsonProperty("is_guest")
+    public boolean isGuest;
+
+    @JsonProperty("is_email_verified")
+    public boolean isEmailVerified;
+
+    @JsonProperty("tunnels")
+    public List<Tunnel> tunnels = new ArrayList<>();
+
+    @JsonProperty("verified_at")
+    public long verifiedAt;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Tunnel {
+        @JsonProperty
+        public String id;
+
+        @JsonProperty("tunnel_type")
+        public TunnelType tunnelType;
+
+        @JsonProperty("display_address")
+        public String displayAddress;
+    }
+
+    private static File file(File dataFolder) {
+        return new File(dataFolder, FILE_NAME);
+    }
+
+    /**
+     * @return the stored state if it was saved for this secret, otherwise null
+     */
+    public static KeysStateFile load(File dataFolder, String secretKey) {
+        var file = file(dataFolder);
+        if (secretKey == null || !file.isFile()) {
+            return null;
+        }
+
+        try {
+            var state = MAPPER.readValue(file, KeysStateFile.class);
+            if (!hash(secretKey).equals(state.secretHash)) {
+                MessageManager.get().debug("Stored agent state belongs to another secret, ignoring");
+                return null;
+            }
+            return state;
+        } catch (IOException e) {
+            MessageManager.get().debug("Failed to read stored agent state: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public static void save(File dataFolder, PlayitKeysSetup.PlayitKeys keys) {
+        var state = new KeysStateFile();
+        state.secretHash = hash(keys.secretKey);
+        state.agentId = keys.agentId;
+        state.tunnelAddress = keys.tunnelAddress;
+        state.isGuest = keys.isGuest;
+        state.isEmailVerified = keys.isEmailVerified;
+        state.tunnels = keys.tunnels;
+        state.verifiedAt = System.currentTimeMillis();
+
+        try {
+            var file = file(dataFolder);
+            var temp = new File(dataFolder, FILE_NAME + ".tmp");
+            dataFolder.mkdirs();
+
+            /* write then move so a crash never leaves a half written file */
+            MAPPER.writeValue(temp, state);
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            MessageManager.get().debug("Failed to store agent state: " + e.getMessage());
+        }
+    }
+
+    public static void delete(File dataFolder) {
+        var file = file(dataFolder);
+        if (file.exists() && !file.delete()) {
+            MessageManager.get().debug("Failed to delete stored agent state");
+        }
+    }
+
+    /**
+     * @param requireBedrock whether a Bedrock tunnel has to exist, as it does with Geyser
+     * @return keys to connect with, or null if the stored tunnels don't cover what's needed
+     */
+    public PlayitKeysSetup.PlayitKeys toKeys(String secretKey, boolean requireBedrock) {
+        boolean haveJava = false;
+        boolean haveBedrock = !requireBedrock;
+
+        for (var tunnel : tunnels) {
+            if (tunnel.tunnelType == TunnelType.MinecraftJava) {
+                haveJava = true;
+            }
+            if (tunnel.tunnelType == TunnelType.MinecraftBedrock) {
+                haveBedrock = true;
+            }
+        }
+
+        if (!haveJava || !haveBedrock || tunnelAddress == null) {
+            return null;
+        }
+
+        var keys = new PlayitKeysSetup.PlayitKeys();
+        keys.secretKey = secretKey;
+        keys.agentId = agentId;
+        keys.tunnelAddress = tunnelAddress;
+        keys.isGuest = isGuest;
+        keys.isEmailVerified = isEmailVerified;
+        keys.tunnels = tunnels;
+        return keys;
+    }
+
+    private static String hash(String secretKey) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            return Hex.encodeHexString(digest.digest(secretKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package gg.playit.minecraft;
+
+import gg.playit.minecraft.logger.MessageManager;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+
+/**
+ * Netty transports the plugin can run its channels on.
+ * Native transports are looked up by name so the plugin still loads on
+ * servers that don't ship them, NIO is always available as the fallback.
+ */
+public enum NettyTransport {
+    IO_URING(
+            "io_uring",
+            "io.netty.incubator.channel.uring.IOUring",
+            "io.netty.incubator.channel.uring.IOUringEventLoopGroup",
+            "io.netty.incubator.channel.uring.IOUringSocketChannel",
+            "io.netty.incubator.channel.uring.IOUringDatagramChannel",
+            "io.netty.incubator.channel.uring.IOUringServerSocketChannel"
+    ),
+    EPOLL(
+            "epoll",
+            "io.netty.channel.epoll.Epoll",
+            "io.netty.channel.epoll.EpollEventLoopGroup",
+            "io.netty.channel.epoll.EpollSocketChannel",
+            "io.netty.channel.epoll.EpollDatagramChannel",
+            "io.netty.channel.epoll.EpollServerSocketChannel"
+    ),
+    NIO(
+            "nio",
+            null,
+            "io.netty.channel.nio.NioEventLoopGroup",
+            "io.netty.channel.socket.nio.NioSocketChannel",
+            "io.netty.channel.socket.nio.NioDatagramChannel",
+            "io.netty.channel.socket.nio.NioServerSocketChannel"
+    );
+
+    private final String name;
+    private final String availabilityClass;
+    private final String eventLoopGroupClass;
+    private final String socketChannelClass;
+    private final String datagramChannelClass;
+    private final String serverSocketChannelClass;
+
+    private Boolean available;
+    private Class<?> eventLoopGroupType;
+    private Class<? extends SocketChannel> socketChannelType;
+    private Class<? extends DatagramChannel> datagramChannelType;
+    private Class<? extends ServerSocketChannel> serverSocketChannelType;
+
+    NettyTransport(String name, String availabilityClass, String eventLoopGroupClass, String socketChannelClass, String datagramChannelClass, String serverSocketChannelClass) {
+        this.name = name;
+        this.availabilityClass = availabilityClass;
+        this.eventLoopGroupClass = eventLoopGroupClass;
+        this.socketChannelClass = socketChannelClass;
+        this.datagramChannelClass = datagramChannelClass;
+        this.serverSocketChannelClass = serverSocketChannelClass;
+    }
+
+    /**
+     * Picks the transport to use. A forced transport is used when it is available,
+     * otherwise the first available transport in order of preference is returned.
+     */
+    public static NettyTransport select(String configured) {
+        var forced = fromString(configured);
+        if (forced != null) {
+            if (forced.isAvailable()) {
+                return forced;
+            }
+            MessageManager.get().warn("Netty transport " + forced + " is not available, selecting automatically");
+        }
+
+        for (var transport : values()) {
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+
+    /**
+     * Parse transport from config value, returns null for "auto" or unknown values.
+     */
+    public static NettyTransport fromString(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        for (var transport : values()) {
+            if (transport.name.equalsIgnoreCase(value.replace('-', '_'))) {
+                return transport;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the transport whose channels can be registered on the given group.
+     *
+     * @return the matching transport or null if the group type isn't known
+     */
+    public static NettyTransport forGroup(EventLoopGroup group) {
+        for (var transport : values()) {
+            if (transport.isAvailable() && transport.eventLoopGroupType.isInstance(group)) {
+                return transport;
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isAvailable() {
+        if (available == null) {
+            available = probe();
+        }
+        return available;
+    }
+
+    private boolean probe() {
+        try {
+            eventLoopGroupType = Class.forName(eventLoopGroupClass);
+            socketChannelType = Class.forName(socketChannelClass).asSubclass(SocketChannel.class);
+            datagramChannelType = Class.forName(datagramChannelClass).asSubclass(DatagramChannel.class);
+            serverSocketChannelType = Class.forName(serverSocketChannelClass).asSubclass(ServerSocketChannel.class);
+
+            if (availabilityClass == null) {
+                return true;
+            }
+
+            return (Boolean) Class.forName(availabilityClass).getMethod("isAvailable").invoke(null);
+        } catch (Throwable ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * @param threads number of threads, 0 to use Netty's default
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        if (!isAvailable()) {
+            throw new IllegalStateException(name + " transport is not available");
+        }
+
+        try {
+            return (EventLoopGroup) eventLoopGroupType.getConstructor(int.class).newInstance(threads);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("failed to create " + name + " event loop group", e);
+        }
+    }
+
+    public Class<? extends SocketChannel> socketChannelClass() {
+        if (!isAvailable()) {
+            throw new IllegalStateException(name + " transport is not available");
+        }
+        return socketChannelType;
+    }
+
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+        if (!isAvailable()) {
+            throw new IllegalStateException(name + " transport is not available");
+        }
+        return datagramChannelType;
+    }
+
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+        if (!isAvailable()) {
+            throw new IllegalStateException(name + " transport is not available");
+        }
+        return serverSocketChannelType;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
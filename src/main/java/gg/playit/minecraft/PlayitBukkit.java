@@ -5,8 +5,11 @@ import gg.playit.api.ApiError;
 import gg.playit.api.models.Notice;
 import gg.playit.minecraft.logger.LogLevel;
 import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.metrics.Histogram;
+import gg.playit.minecraft.metrics.MetricsServer;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+import gg.playit.minecraft.metrics.PopMetrics;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Server;
@@ -23,6 +26,7 @@ import java.io.FileInputStream;
 import java.util.Map;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.List;
 
 public final class PlayitBukkit extends JavaPlugin implements Listener {
@@ -30,8 +34,23 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
     public static final String CFG_CONNECTION_TIMEOUT_SECONDS = "mc-timeout-sec";
     public static final String CFG_LOG_LEVEL = "log-level";
     public static final String CFG_SHOW_BANNER = "show-banner";
-
-    final EventLoopGroup eventGroup = new NioEventLoopGroup();
+    public static final String CFG_NETTY_TRANSPORT = "netty-transport";
+    public static final String CFG_USE_SERVER_EVENT_LOOP = "use-server-event-loop";
+    public static final String CFG_EVENT_LOOP_THREADS = "event-loop-threads";
+    public static final String CFG_SPLICE_FORWARDING = "splice-forwarding";
+    public static final String CFG_FLUSH_CONSOLIDATION_LIMIT = "flush-consolidation-limit";
+    public static final String CFG_WRITE_BUFFER_LOW = "write-buffer-low-water-mark";
+    public static final String CFG_WRITE_BUFFER_HIGH = "write-buffer-high-water-mark";
+    public static final String CFG_SLOW_JOIN_THRESHOLD_MS = "slow-join-threshold-ms";
+    public static final String CFG_METRICS_ENABLED = "metrics-enabled";
+    public static final String CFG_METRICS_ADDRESS = "metrics-address";
+    public static final String CFG_METRICS_PORT = "metrics-port";
+
+    NettyTransport transport;
+    EventLoopGroup eventGroup;
+    private boolean ownsEventGroup;
+    volatile InjectionPlan injectionPlan;
+    private MetricsServer metricsServer;
 
     private final Object managerSync = new Object();
     private volatile PlayitManager playitManager;
@@ -50,6 +69,17 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         getConfig().addDefault(CFG_CONNECTION_TIMEOUT_SECONDS, 30);
         getConfig().addDefault(CFG_LOG_LEVEL, "INFO");
         getConfig().addDefault(CFG_SHOW_BANNER, true);
+        getConfig().addDefault(CFG_NETTY_TRANSPORT, "auto");
+        getConfig().addDefault(CFG_USE_SERVER_EVENT_LOOP, false);
+        getConfig().addDefault(CFG_EVENT_LOOP_THREADS, 2);
+        getConfig().addDefault(CFG_SPLICE_FORWARDING, false);
+        getConfig().addDefault(CFG_FLUSH_CONSOLIDATION_LIMIT, 64);
+        getConfig().addDefault(CFG_WRITE_BUFFER_LOW, 32 * 1024);
+        getConfig().addDefault(CFG_WRITE_BUFFER_HIGH, 64 * 1024);
+        getConfig().addDefault(CFG_SLOW_JOIN_THRESHOLD_MS, 2000);
+        getConfig().addDefault(CFG_METRICS_ENABLED, false);
+        getConfig().addDefault(CFG_METRICS_ADDRESS, "127.0.0.1");
+        getConfig().addDefault(CFG_METRICS_PORT, 9225);
         getConfig().options().copyDefaults(true);
         saveDefaultConfig();
 
@@ -65,6 +95,29 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         // Show startup banner
         msg.showStartupBanner();
 
+        // Resolve channel injection once, unsupported servers go straight to the local proxy
+        injectionPlan = InjectionPlan.resolve(server);
+        if (injectionPlan != null) {
+            msg.debug("Direct channel injection supported");
+        } else {
+            msg.debug("Direct channel injection unavailable, using local proxy");
+        }
+
+        setupEventLoop();
+
+        ApiClient.setCallListener((micros, failed) -> {
+            var metrics = PlayitMetrics.get();
+            metrics.apiLatency.record(micros);
+            if (failed) {
+                metrics.apiErrors.increment();
+            }
+        });
+
+        if (getConfig().getBoolean(CFG_METRICS_ENABLED, false)) {
+            var address = new InetSocketAddress(getConfig().getString(CFG_METRICS_ADDRESS, "127.0.0.1"), getConfig().getInt(CFG_METRICS_PORT, 9225));
+            metricsServer = MetricsServer.start(eventGroup, transport.serverSocketChannelClass(), address, () -> playitManager);
+        }
+
         // Detect Geyser plugin
         PluginManager pm = Bukkit.getServer().getPluginManager();
         Plugin geyser = pm.getPlugin("Geyser-Spigot");
@@ -116,6 +169,39 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         }
     }
 
+    /**
+     * Starts a small dedicated event loop group by default. With use-server-event-loop
+     * enabled, runs tunnel channels on the server's own Netty workers when they can be found.
+     */
+    private void setupEventLoop() {
+        MessageManager msg = MessageManager.get();
+        String configured = getConfig().getString(CFG_NETTY_TRANSPORT, "auto");
+
+        if (getConfig().getBoolean(CFG_USE_SERVER_EVENT_LOOP, false)) {
+            var reflect = new ReflectionHelper();
+            var serverConnection = reflect.serverConnectionFromMCServer(reflect.getMinecraftServer(server));
+            var serverGroup = reflect.serverEventLoopGroup(serverConnection);
+            var serverTransport = serverGroup == null ? null : NettyTransport.forGroup(serverGroup);
+            var forced = NettyTransport.fromString(configured);
+
+            if (serverTransport != null && (forced == null || forced == serverTransport)) {
+                transport = serverTransport;
+                eventGroup = serverGroup;
+                ownsEventGroup = false;
+                msg.debug("Using the server's " + transport + " event loops");
+                return;
+            }
+
+            msg.debug("Server event loops unavailable, starting dedicated threads");
+        }
+
+        // Pick the fastest Netty transport this host supports
+        transport = NettyTransport.select(configured);
+        eventGroup = transport.newEventLoopGroup(Math.max(1, getConfig().getInt(CFG_EVENT_LOOP_THREADS, 2)));
+        ownsEventGroup = true;
+        msg.debug("Using " + transport + " network transport");
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
         var player = event.getPlayer();
@@ -198,6 +284,38 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
                     if (address != null) {
                         sender.sendMessage(ChatColor.GOLD + "[Playit] " + ChatColor.WHITE + "Address: " + ChatColor.AQUA + address);
                     }
+
+                    var tracker = manager.getTracker();
+                    int[] injected = new int[1];
+                    tracker.forEach(connection -> {
+                        if (connection.getPath() == PlayitConnectionTracker.ForwardPath.INJECTED) {
+                            injected[0]++;
+                        }
+                    });
+
+                    int active = tracker.getActiveCount();
+                    sender.sendMessage(ChatColor.GOLD + "[Playit] " + ChatColor.WHITE + "Connections: " + ChatColor.AQUA + active
+                            + ChatColor.GRAY + " (injected: " + injected[0] + ")");
+
+                    var control = manager.getControlChannel();
+                    if (control != null && control.getRtt().getSampleCount() != 0) {
+                        var rtt = control.getRtt();
+                        sender.sendMessage(ChatColor.GOLD + "[Playit] " + ChatColor.WHITE + "Control latency: " + ChatColor.AQUA + rtt.getSmoothedRtt() + "ms"
+                                + ChatColor.GRAY + " (p50 " + rtt.percentile(50) + "ms, p99 " + rtt.percentile(99) + "ms, min " + rtt.getMinRtt()
+                                + "ms, clock offset " + rtt.getClockOffset() + "ms, " + control.getControlAddress() + ")");
+                    }
+
+                    if (control != null) {
+                        var renewals = control.getRenewalStats();
+                        sender.sendMessage(ChatColor.GOLD + "[Playit] " + ChatColor.WHITE + "Session: " + ChatColor.AQUA + "expires in " + (control.getSessionExpiresIn() / 1000) + "s"
+                                + ChatColor.GRAY + " (renewals " + renewals.getSucceeded() + "/" + renewals.getAttempts()
+                                + ", re-registers " + renewals.getReRegisters() + ", last margin " + (renewals.getLastMarginMs() / 1000) + "s)");
+                    }
+                }
+
+                if (transport != null) {
+                    sender.sendMessage(ChatColor.GOLD + "[Playit] " + ChatColor.WHITE + "Transport: " + ChatColor.AQUA + transport
+                            + ChatColor.GRAY + (ownsEventGroup ? " (dedicated threads)" : " (server threads)"));
                 }
 
                 return true;
@@ -284,6 +402,11 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
             return false;
         }
 
+        if (args.length > 0 && args[0].equals("stats")) {
+            showStats(sender);
+            return true;
+        }
+
         if (args.length > 0 && args[0].equals("tunnel")) {
             if (args.length > 1 && args[1].equals("get-address")) {
                 var m = playitManager;
@@ -337,6 +460,7 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         // Default: show help
         sender.sendMessage(ChatColor.GOLD + "=== Playit.gg Commands ===");
         sender.sendMessage(ChatColor.WHITE + "/playit agent status" + ChatColor.GRAY + " - View connection status");
+        sender.sendMessage(ChatColor.WHITE + "/playit stats" + ChatColor.GRAY + " - View traffic and latency stats");
         sender.sendMessage(ChatColor.WHITE + "/playit agent restart" + ChatColor.GRAY + " - Restart connection");
         sender.sendMessage(ChatColor.WHITE + "/playit agent reset" + ChatColor.GRAY + " - Reset configuration");
         sender.sendMessage(ChatColor.WHITE + "/playit tunnel get-address" + ChatColor.GRAY + " - Get tunnel address");
@@ -344,6 +468,100 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         return true;
     }
 
+    private void showStats(CommandSender sender) {
+        var metrics = PlayitMetrics.get();
+        var prefix = ChatColor.GOLD + "[Playit] " + ChatColor.WHITE;
+
+        long active = 0;
+        long bytesIn = metrics.closedBytesIn.sum();
+        long bytesOut = metrics.closedBytesOut.sum();
+        long packetsIn = metrics.closedPacketsIn.sum();
+        long packetsOut = metrics.closedPacketsOut.sum();
+
+        var manager = playitManager;
+        if (manager != null) {
+            var tracker = manager.getTracker();
+            long[] live = new long[4];
+            tracker.forEach(connection -> {
+                live[0] += connection.getBytesIn();
+                live[1] += connection.getBytesOut();
+                live[2] += connection.getPacketsIn();
+                live[3] += connection.getPacketsOut();
+            });
+
+            active = tracker.getActiveCount();
+            bytesIn += live[0];
+            bytesOut += live[1];
+            packetsIn += live[2];
+            packetsOut += live[3];
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "=== Playit.gg Stats ===");
+        sender.sendMessage(prefix + "Connections: " + ChatColor.AQUA + active + " active, " + metrics.connectionsTotal.sum() + " total"
+                + ChatColor.GRAY + " (injected " + metrics.connectionsInjected.sum() + ", proxied " + metrics.connectionsProxied.sum()
+                + ", spliced " + metrics.connectionsSpliced.sum() + ")");
+        sender.sendMessage(prefix + "Traffic in: " + ChatColor.AQUA + formatBytes(bytesIn) + ChatColor.GRAY + " (" + packetsIn + " reads)");
+        sender.sendMessage(prefix + "Traffic out: " + ChatColor.AQUA + formatBytes(bytesOut) + ChatColor.GRAY + " (" + packetsOut + " writes)");
+        sender.sendMessage(prefix + "Claim latency: " + formatLatency(metrics.claimLatency)
+                + ChatColor.GRAY + ", failures " + metrics.claimFailures.sum());
+        sender.sendMessage(prefix + "Join setup: " + formatLatency(metrics.joinTotal));
+        sender.sendMessage(prefix + "  claim connect " + formatLatency(metrics.joinConnect));
+        sender.sendMessage(prefix + "  claim confirm " + formatLatency(metrics.joinConfirm));
+        sender.sendMessage(prefix + "  inject " + formatLatency(metrics.joinInject));
+        sender.sendMessage(prefix + "  server accept " + formatLatency(metrics.joinAccept));
+        sender.sendMessage(prefix + "Control RTT: " + formatLatency(metrics.controlRtt)
+                + ChatColor.GRAY + ", reconnects " + metrics.controlReconnects.sum());
+        sender.sendMessage(prefix + "API latency: " + formatLatency(metrics.apiLatency)
+                + ChatColor.GRAY + ", errors " + metrics.apiErrors.sum());
+
+        var pops = metrics.pops.snapshot();
+        if (!pops.isEmpty()) {
+            sender.sendMessage(prefix + "Busiest PoPs" + ChatColor.GRAY + " (tunnel server/data center)");
+            for (var pop : pops.subList(0, Math.min(5, pops.size()))) {
+                sender.sendMessage(prefix + "  " + pop.tunnelServerId + "/" + pop.dataCenterId + ": " + formatPop(pop));
+            }
+
+            var overflow = metrics.pops.getOverflow();
+            if (overflow.connections.sum() != 0) {
+                sender.sendMessage(prefix + "  other: " + formatPop(overflow));
+            }
+        }
+    }
+
+    private static String formatPop(PopMetrics.Pop pop) {
+        var sessions = pop.sessionDuration;
+        return ChatColor.AQUA + String.valueOf(pop.connections.sum()) + " conns"
+                + ChatColor.GRAY + ", claims " + String.format("%.1f%%", pop.claimSuccessRate() * 100) + " ok"
+                + (pop.claimLatency.getCount() == 0 ? "" : " p50 " + formatMillis(pop.claimLatency.percentile(50)) + " p99 " + formatMillis(pop.claimLatency.percentile(99)))
+                + ", " + formatBytes(pop.bytesIn.sum() + pop.bytesOut.sum())
+                + (sessions.getCount() == 0 ? "" : ", avg session " + Math.round(sessions.getMean() / 60_000) + "m");
+    }
+
+    private static String formatLatency(Histogram micros) {
+        if (micros.getCount() == 0) {
+            return ChatColor.GRAY + "no samples";
+        }
+
+        return ChatColor.AQUA + "p50 " + formatMillis(micros.percentile(50))
+                + " p99 " + formatMillis(micros.percentile(99))
+                + " max " + formatMillis(micros.getMax())
+                + ChatColor.GRAY + " (" + micros.getCount() + " samples)";
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+
+        var units = "KMGTPE";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / Math.pow(1024, unit), units.charAt(unit - 1));
+    }
+
     private void resetConnection(String secretKey) {
         if (secretKey != null) {
             getConfig().set(CFG_AGENT_SECRET_KEY, secretKey);
@@ -380,7 +598,7 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
         }
 
         if (argCount == 0) {
-            return List.of("agent", "tunnel", "prop", "account");
+            return List.of("agent", "tunnel", "prop", "account", "stats");
         }
 
         if (args[0].equals("account")) {
@@ -427,6 +645,18 @@ public final class PlayitBukkit extends JavaPlugin implements Listener {
             playitManager.shutdown();
             playitManager = null;
         }
+        if (metricsServer != null) {
+            metricsServer.close();
+            metricsServer = null;
+        }
+        ApiClient.setCallListener(null);
+        if (eventGroup != null) {
+            /* never shut down the server's own event loops */
+            if (ownsEventGroup) {
+                eventGroup.shutdownGracefully();
+            }
+            eventGroup = null;
+        }
         MessageManager.get().info("Plugin disabled");
     }
 }
@@ -1,24 +1,195 @@
 package gg.playit.minecraft;
 
-import java.util.Set;
+import gg.playit.messages.SocketAddr;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Thread-safe tracker for active connections.
- * Uses ConcurrentHashMap for lock-free operations.
+ * Uses ConcurrentHashMap for lock-free operations, keyed by packed binary addresses
+ * so registering a connection doesn't build any strings.
  */
 public class PlayitConnectionTracker {
-    private final Set<String> activeConnections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Key, Connection> activeConnections = new ConcurrentHashMap<>();
 
-    public boolean addConnection(String key) {
-        return activeConnections.add(key);
+    /**
+     * @return the new connection, or null if one with the same key is already active
+     */
+    public Connection addConnection(Key key, long tunnelServerId, int dataCenterId) {
+        var connection = new Connection(key, tunnelServerId, dataCenterId);
+        if (activeConnections.putIfAbsent(key, connection) != null) {
+            return null;
+        }
+        var metrics = PlayitMetrics.get();
+        metrics.connectionsTotal.increment();
+        metrics.pops.connectionStarted(tunnelServerId, dataCenterId);
+        return connection;
     }
 
-    public void removeConnection(String key) {
-        activeConnections.remove(key);
+    /**
+     * Safe to call more than once, only the first call for a connection has any effect.
+     */
+    public void removeConnection(Connection connection) {
+        if (activeConnections.remove(connection.key, connection)) {
+            /* fold the connection's own counters into the totals once it's gone */
+            var metrics = PlayitMetrics.get();
+            metrics.closedBytesIn.add(connection.bytesIn);
+            metrics.closedBytesOut.add(connection.bytesOut);
+            metrics.closedPacketsIn.add(connection.packetsIn);
+            metrics.closedPacketsOut.add(connection.packetsOut);
+
+            var pop = metrics.pops.find(connection.tunnelServerId, connection.dataCenterId);
+            pop.closed.increment();
+            pop.bytesIn.add(connection.bytesIn);
+            pop.bytesOut.add(connection.bytesOut);
+            pop.sessionDuration.record(System.currentTimeMillis() - connection.startedAt);
+        }
     }
-    
+
     public int getActiveCount() {
         return activeConnections.size();
     }
+
+    /**
+     * Visits active connections without copying them. Weakly consistent, connections
+     * added or removed during the walk may or may not be seen.
+     */
+    public void forEach(Consumer<Connection> action) {
+        activeConnections.values().forEach(action);
+    }
+
+    /**
+     * Peer and connect address packed into longs, IPv4 is stored as IPv4-mapped IPv6.
+     */
+    public static final class Key {
+        private final long peerHigh;
+        private final long peerLow;
+        private final long connectHigh;
+        private final long connectLow;
+        private final long ports;
+
+        private Key(long peerHigh, long peerLow, long connectHigh, long connectLow, long ports) {
+            this.peerHigh = peerHigh;
+            this.peerLow = peerLow;
+            this.connectHigh = connectHigh;
+            this.connectLow = connectLow;
+            this.ports = ports;
+        }
+
+        public static Key of(SocketAddr peer, SocketAddr connect) {
+            return new Key(
+                    high(peer.ipBytes), low(peer.ipBytes),
+                    high(connect.ipBytes), low(connect.ipBytes),
+                    ((long) Short.toUnsignedInt(peer.portNumber) << 16) | Short.toUnsignedInt(connect.portNumber)
+            );
+        }
+
+        private static long high(byte[] ip) {
+            if (ip.length == 4) {
+                return 0;
+            }
+            return readLong(ip, 0);
+        }
+
+        private static long low(byte[] ip) {
+            if (ip.length == 4) {
+                return 0xFFFF_0000_0000L | Integer.toUnsignedLong(
+                        (ip[0] & 0xFF) << 24 | (ip[1] & 0xFF) << 16 | (ip[2] & 0xFF) << 8 | (ip[3] & 0xFF)
+                );
+            }
+            return readLong(ip, 8);
+        }
+
+        private static long readLong(byte[] data, int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[offset + i] & 0xFF);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key key)) return false;
+            return peerHigh == key.peerHigh
+                    && peerLow == key.peerLow
+                    && connectHigh == key.connectHigh
+                    && connectLow == key.connectLow
+                    && ports == key.ports;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = peerHigh * 31 + peerLow;
+            h = h * 31 + connectHigh;
+            h = h * 31 + connectLow;
+            h = h * 31 + ports;
+            return Long.hashCode(h);
+        }
+    }
+
+    public enum ForwardPath {
+        PENDING,
+        INJECTED,
+        PROXY,
+        SPLICE
+    }
+
+    /**
+     * State of one tunneled connection. The byte counters have a single writer, the
+     * tunnel channel's event loop, and are only read elsewhere for stats.
+     */
+    public static final class Connection {
+        public final Key key;
+        public final long startedAt = System.currentTimeMillis();
+        public final long tunnelServerId;
+        public final int dataCenterId;
+
+        volatile ForwardPath path = ForwardPath.PENDING;
+        volatile long bytesIn;
+        volatile long bytesOut;
+        volatile long packetsIn;
+        volatile long packetsOut;
+
+        Connection(Key key, long tunnelServerId, int dataCenterId) {
+            this.key = key;
+            this.tunnelServerId = tunnelServerId;
+            this.dataCenterId = dataCenterId;
+        }
+
+        public ForwardPath getPath() {
+            return path;
+        }
+
+        /**
+         * Bytes received from the player through the tunnel.
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * Bytes sent to the player through the tunnel.
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * Buffers read from the tunnel, one per socket read.
+         */
+        public long getPacketsIn() {
+            return packetsIn;
+        }
+
+        /**
+         * Buffers written to the tunnel.
+         */
+        public long getPacketsOut() {
+            return packetsOut;
+        }
+    }
 }
@@ -4,6 +4,7 @@ import gg.playit.api.ApiClient;
 import gg.playit.api.ApiError;
 import gg.playit.api.actions.CreateTunnel;
 import gg.playit.api.models.AccountTunnel;
+import gg.playit.api.models.Created;
 import gg.playit.api.models.Notice;
 import gg.playit.api.models.PortType;
 import gg.playit.api.models.TunnelType;
@@ -11,7 +12,11 @@ import gg.playit.minecraft.logger.MessageManager;
 import gg.playit.minecraft.utils.Hex;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlayitKeysSetup {
@@ -35,6 +40,7 @@ public class PlayitKeysSetup {
 
     private final PlayitKeys keys = new PlayitKeys();
     private String claimCode;
+    private KeysStateFile.Tunnel createdBedrock;
 
     public int getState() {
         return state.get();
@@ -117,12 +123,20 @@ public class PlayitKeysSetup {
                 var api = new ApiClient(keys.secretKey);
 
                 var tunnels = api.listTunnels();
+
                 keys.tunnelAddress = null;
+                keys.tunnels = new ArrayList<>();
 
                 boolean haveJava = false;
                 boolean haveBedrock = !isGeyserPresent;
 
                 for (AccountTunnel tunnel : tunnels.tunnels) {
+                    var stored = new KeysStateFile.Tunnel();
+                    stored.id = tunnel.id;
+                    stored.tunnelType = tunnel.tunnelType;
+                    stored.displayAddress = tunnel.displayAddress;
+                    keys.tunnels.add(stored);
+
                     if (tunnel.tunnelType == TunnelType.MinecraftJava) {
                         keys.tunnelAddress = tunnel.displayAddress;
                         haveJava = true;
@@ -134,6 +148,20 @@ public class PlayitKeysSetup {
                     }
                 }
 
+                /* a Bedrock tunnel we created has its id from the create response, no need to list it again */
+                if (!haveBedrock && createdBedrock != null) {
+                    keys.tunnels.add(createdBedrock);
+                    haveBedrock = true;
+                }
+
+                if (haveJava && haveBedrock) {
+                    return keys;
+                }
+
+                /* create whatever is missing at the same time */
+                CompletableFuture<Created> javaRequest = null;
+                CompletableFuture<Created> bedrockRequest = null;
+
                 // Always create Java tunnel if not found
                 if (!haveJava) {
                     msg.debug("Creating Minecraft Java tunnel...");
@@ -144,24 +172,13 @@ public class PlayitKeysSetup {
                     create.portType = PortType.TCP;
                     create.tunnelType = TunnelType.MinecraftJava;
                     create.agentId = keys.agentId;
-
-                    try {
-                        api.createTunnel(create);
-                    } catch (ApiError e) {
-                        // "tunnel already exists" is expected, not an error
-                        if (e.statusCode == 400 && e.getMessage() != null && 
-                            e.getMessage().contains("tunnel already exists")) {
-                            msg.debug("Tunnel already exists, checking again...");
-                        } else {
-                            throw e;
-                        }
-                    }
-                    return null; // Wait for tunnel to appear
+                    javaRequest = api.createTunnelAsync(create);
                 }
 
                 // If Geyser is present, ensure a Bedrock UDP tunnel exists
-                if (isGeyserPresent && !haveBedrock) {
+                if (!haveBedrock) {
                     msg.debug("Creating Minecraft Bedrock tunnel on port " + geyserPort + "...");
+
                     var create = new CreateTunnel();
                     create.localIp = "127.0.0.1";
                     create.localPort = geyserPort;
@@ -169,23 +186,25 @@ public class PlayitKeysSetup {
                     create.portType = PortType.UDP;
                     create.tunnelType = TunnelType.MinecraftBedrock;
                     create.agentId = keys.agentId;
-                    
-                    try {
-                        api.createTunnel(create);
-                    } catch (ApiError e) {
-                        // "tunnel already exists" is expected, not an error
-                        if (e.statusCode == 400 && e.getMessage() != null && 
-                            e.getMessage().contains("tunnel already exists")) {
-                            msg.debug("Bedrock tunnel already exists, checking again...");
-                        } else {
-                            throw e;
-                        }
+                    bedrockRequest = api.createTunnelAsync(create);
+                }
+
+                if (javaRequest != null) {
+                    awaitCreated(javaRequest, "Java");
+                }
+
+                if (bedrockRequest != null) {
+                    var created = awaitCreated(bedrockRequest, "Bedrock");
+                    if (created != null && created.id != null) {
+                        createdBedrock = new KeysStateFile.Tunnel();
+                        createdBedrock.id = created.id;
+                        createdBedrock.tunnelType = TunnelType.MinecraftBedrock;
                     }
-                    return null; // Wait for tunnel to appear
                 }
 
-                // If we have both required tunnels, setup is done
-                if (haveJava && haveBedrock) {
+                /* the Java tunnel's display address only comes from the list, fetch it on the next step */
+                if (javaRequest == null && createdBedrock != null) {
+                    keys.tunnels.add(createdBedrock);
                     return keys;
                 }
 
@@ -197,6 +216,36 @@ public class PlayitKeysSetup {
         }
     }
 
+    private static <T> T await(CompletableFuture<T> request) throws IOException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            throw new IOException("request interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("request failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return the created tunnel, or null if it already existed
+     */
+    private static Created awaitCreated(CompletableFuture<Created> request, String kind) throws IOException {
+        try {
+            return await(request);
+        } catch (ApiError e) {
+            // "tunnel already exists" is expected, not an error
+            if (e.statusCode == 400 && e.getMessage() != null &&
+                e.getMessage().contains("tunnel already exists")) {
+                MessageManager.get().debug(kind + " tunnel already exists, checking again...");
+                return null;
+            }
+            throw e;
+        }
+    }
+
     public static class PlayitKeys {
         public String secretKey;
         public String agentId;
@@ -204,5 +253,6 @@ public class PlayitKeysSetup {
         public boolean isGuest;
         public boolean isEmailVerified;
         public Notice notice;
+        public List<KeysStateFile.Tunnel> tunnels = new ArrayList<>();
     }
 }
@@ -5,23 +5,37 @@ import gg.playit.api.models.Notice;
 import gg.playit.control.PlayitControlChannel;
 import gg.playit.messages.ControlFeedReader;
 import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+import io.netty.channel.EventLoop;
 import org.bukkit.Bukkit;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlayitManager implements Runnable {
     private final AtomicInteger state = new AtomicInteger(STATE_INIT);
     private final PlayitConnectionTracker tracker = new PlayitConnectionTracker();
 
+    private static final int ADMISSION_QUEUE_CAPACITY = 1024;
+
+    private final AdmissionQueue admissions = new AdmissionQueue(ADMISSION_QUEUE_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    /* resolved once when connecting, the server's bind address doesn't change while running */
+    private InetSocketAddress minecraftServerAddress;
+    private EventLoop admissionLoop;
+
     private final PlayitBukkit plugin;
+    private final TunnelSettings tunnelSettings;
     private final boolean isGeyserPresent;
     private final int geyserPort;
 
     public PlayitManager(PlayitBukkit plugin, boolean isGeyserPresent, int geyserPort) {
         this.plugin = plugin;
+        this.tunnelSettings = TunnelSettings.fromConfig(plugin.getConfig());
         this.isGeyserPresent = isGeyserPresent;
         this.geyserPort = geyserPort;
 
@@ -31,9 +45,14 @@ public class PlayitManager implements Runnable {
         }
 
         setup = new PlayitKeysSetup(secret, state, isGeyserPresent, geyserPort);
+
+        var stored = KeysStateFile.load(plugin.getDataFolder(), secret);
+        storedKeys = stored == null ? null : stored.toKeys(secret, isGeyserPresent);
     }
 
     private final PlayitKeysSetup setup;
+    /* last verified keys from the state file, lets startup connect before the API answers */
+    private final PlayitKeysSetup.PlayitKeys storedKeys;
     private volatile PlayitKeysSetup.PlayitKeys keys;
 
     public boolean isGuest() {
@@ -51,6 +70,17 @@ public class PlayitManager implements Runnable {
         return keys.tunnelAddress;
     }
 
+    public PlayitConnectionTracker getTracker() {
+        return tracker;
+    }
+
+    /**
+     * @return the registered control channel, null while not connected
+     */
+    public PlayitControlChannel getControlChannel() {
+        return controlChannel;
+    }
+
     public Notice getNotice() {
         var k = keys;
         if (k == null) {
@@ -68,8 +98,15 @@ public class PlayitManager implements Runnable {
     public static final int STATE_SHUTDOWN = 0;
     public static final int STATE_INVALID_AUTH = 15;
 
+    private volatile PlayitControlChannel controlChannel;
+
     public void shutdown() {
-        state.compareAndSet(STATE_ONLINE, STATE_SHUTDOWN);
+        if (state.compareAndSet(STATE_ONLINE, STATE_SHUTDOWN)) {
+            var channel = controlChannel;
+            if (channel != null) {
+                channel.close();
+            }
+        }
     }
 
     public int state() {
@@ -85,7 +122,13 @@ public class PlayitManager implements Runnable {
             return;
         }
 
-        while (state.get() != STATE_SHUTDOWN) {
+        if (storedKeys != null) {
+            msg.debug("Using stored agent state, verifying with the API in the background");
+            keys = storedKeys;
+            verifyInBackground(storedKeys);
+        }
+
+        while (keys == null && state.get() != STATE_SHUTDOWN) {
             try {
                 keys = setup.progress();
 
@@ -130,8 +173,150 @@ public class PlayitManager implements Runnable {
             return;
         }
 
-        plugin.getConfig().set(PlayitBukkit.CFG_AGENT_SECRET_KEY, keys.secretKey);
-        plugin.saveConfig();
+        if (storedKeys == null) {
+            plugin.getConfig().set(PlayitBukkit.CFG_AGENT_SECRET_KEY, keys.secretKey);
+            plugin.saveConfig();
+            KeysStateFile.save(plugin.getDataFolder(), keys);
+
+            announceAccount(keys);
+        }
+
+        // Show the tunnel address
+        plugin.showTunnelAddress(keys.tunnelAddress);
+
+        if (state.get() == STATE_SHUTDOWN) {
+            return;
+        }
+
+        state.set(STATE_CONNECTING);
+
+        minecraftServerAddress = new InetSocketAddress(Bukkit.getIp(), Bukkit.getPort());
+        admissionLoop = plugin.eventGroup.next();
+
+        connect();
+    }
+
+    /*
+     * reconnect backoff, only touched by whichever thread is setting up the channel. Each one
+     * starts the next, which orders the accesses
+     */
+    private int reconnectAttempts;
+    private long lastReconnect;
+
+    /**
+     * Sets up the control channel, which blocks on the control server and the API. Runs on the
+     * manager thread first and on a short-lived thread for every reconnect, closing the channel
+     * schedules the next attempt so no thread waits on it while it's up.
+     */
+    private void connect() {
+        MessageManager msg = MessageManager.get();
+
+        PlayitControlChannel channel;
+        try {
+            channel = PlayitControlChannel.setup(keys.secretKey, plugin.eventGroup, plugin.transport.datagramChannelClass());
+        } catch (IOException e) {
+            connectFailed(e);
+            return;
+        }
+
+        /* set before going online, so a shutdown that sees ONLINE also sees the channel to close */
+        controlChannel = channel;
+        if (!state.compareAndSet(STATE_CONNECTING, STATE_ONLINE)) {
+            controlChannel = null;
+            channel.close();
+            state.compareAndSet(STATE_SHUTDOWN, STATE_OFFLINE);
+            return;
+        }
+
+        reconnectAttempts = 0;
+        msg.showSimpleMessage("§aTunnel connection established");
+
+        channel.start(this::onControlFeed);
+        channel.closeFuture().addListener(f -> controlClosed(channel));
+    }
+
+    /* runs on the control channel's event loop, so anything blocking goes to a new thread */
+    private void controlClosed(PlayitControlChannel channel) {
+        MessageManager msg = MessageManager.get();
+        controlChannel = null;
+
+        if (state.compareAndSet(STATE_SHUTDOWN, STATE_OFFLINE)) {
+            msg.debug("Control channel shutdown");
+            return;
+        }
+
+        if (channel.movingTo() != null && state.compareAndSet(STATE_ONLINE, STATE_CONNECTING)) {
+            /* moving to a lower latency control address, reconnect right away */
+            PlayitMetrics.get().controlReconnects.increment();
+            reconnect(0);
+            return;
+        }
+
+        if (state.compareAndSet(STATE_ONLINE, STATE_ERROR_WAITING)) {
+            var cause = channel.closeCause();
+            connectFailed(new IOException("control channel closed: " + (cause == null ? "unknown" : cause.getMessage()), cause));
+        }
+    }
+
+    private void connectFailed(IOException e) {
+        MessageManager msg = MessageManager.get();
+
+        if (e.getMessage() != null && e.getMessage().contains("invalid authentication")) {
+            msg.error("Invalid secret key - please reconfigure");
+            state.set(STATE_INVALID_AUTH);
+            return;
+        }
+
+        // Rate limit reconnection attempts
+        reconnectAttempts++;
+        long now = System.currentTimeMillis();
+        long timeSinceLastReconnect = now - lastReconnect;
+
+        int delay = Math.min(5000 * reconnectAttempts, 60000); // Max 1 minute
+        if (timeSinceLastReconnect < delay) {
+            delay = (int)(delay - timeSinceLastReconnect);
+        }
+
+        if (reconnectAttempts <= 3) {
+            msg.debug("Connection lost, reconnecting in " + (delay/1000) + "s...");
+        } else if (reconnectAttempts == 4) {
+            msg.warn("Connection unstable, will keep trying...");
+        }
+
+        reconnect(delay);
+    }
+
+    private void reconnect(int delay) {
+        var thread = new Thread(() -> {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ignore) {
+                }
+            }
+
+            lastReconnect = System.currentTimeMillis();
+
+            MessageManager msg = MessageManager.get();
+            if (state.compareAndSet(STATE_SHUTDOWN, STATE_OFFLINE)) {
+                msg.debug("Control channel shutdown");
+                return;
+            } else if (state.compareAndSet(STATE_ERROR_WAITING, STATE_CONNECTING)) {
+                msg.debug("Attempting reconnection...");
+                PlayitMetrics.get().controlReconnects.increment();
+            }
+
+            if (state.get() == STATE_CONNECTING) {
+                connect();
+            }
+        }, "playit-control-reconnect");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void announceAccount(PlayitKeysSetup.PlayitKeys keys) {
+        MessageManager msg = MessageManager.get();
 
         if (keys.isGuest) {
             msg.showWarningBox("Guest Account", "Running with a guest account. Use /playit account guest-login-link to claim.");
@@ -158,92 +343,134 @@ public class PlayitManager implements Runnable {
         } else if (!keys.isEmailVerified) {
             msg.warn("Email not verified on playit.gg account");
         }
+    }
 
-        // Show the tunnel address
-        plugin.showTunnelAddress(keys.tunnelAddress);
+    /**
+     * Runs the normal key setup against the API on a separate thread while the control channel
+     * connects with the stored keys, then stores the fresh result.
+     */
+    private void verifyInBackground(PlayitKeysSetup.PlayitKeys stored) {
+        var thread = new Thread(() -> {
+            MessageManager msg = MessageManager.get();
+            var verifyState = new AtomicInteger(PlayitKeysSetup.STATE_INIT);
+            var verify = new PlayitKeysSetup(stored.secretKey, verifyState, isGeyserPresent, geyserPort);
+
+            while (isRunning()) {
+                PlayitKeysSetup.PlayitKeys verified;
+                try {
+                    verified = verify.progress();
+                } catch (IOException e) {
+                    msg.debug("Background key verification failed, retrying: " + e.getMessage());
 
-        if (state.get() == STATE_SHUTDOWN) {
-            return;
-        }
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException ignore) {
+                    }
 
-        state.set(STATE_CONNECTING);
+                    continue;
+                }
 
-        int reconnectAttempts = 0;
-        long lastReconnect = 0;
-
-        while (state.get() == STATE_CONNECTING) {
-            try (PlayitControlChannel channel = PlayitControlChannel.setup(keys.secretKey)) {
-                state.compareAndSet(STATE_CONNECTING, STATE_ONLINE);
-                reconnectAttempts = 0;
-                msg.showSimpleMessage("§aTunnel connection established");
-
-                while (state.get() == STATE_ONLINE) {
-                    var messageOpt = channel.update();
-                    if (messageOpt.isPresent()) {
-                        var feedMessage = messageOpt.get();
-
-                        if (feedMessage instanceof ControlFeedReader.NewClient newClient) {
-                            msg.debug("New client connection from " + newClient.peerAddr);
-
-                            var key = newClient.peerAddr + "-" + newClient.connectAddr;
-                            if (tracker.addConnection(key)) {
-                                msg.debug("Starting TCP tunnel for client");
-
-                                new PlayitTcpTunnel(
-                                        new InetSocketAddress(InetAddress.getByAddress(newClient.peerAddr.ipBytes), Short.toUnsignedInt(newClient.peerAddr.portNumber)),
-                                        plugin.eventGroup,
-                                        tracker,
-                                        key,
-                                        new InetSocketAddress(Bukkit.getIp(), Bukkit.getPort()),
-                                        new InetSocketAddress(InetAddress.getByAddress(newClient.claimAddress.ipBytes), Short.toUnsignedInt(newClient.claimAddress.portNumber)),
-                                        newClient.claimToken,
-                                        plugin.server,
-                                        connectionTimeoutSeconds
-                                ).start();
-                            }
-                        }
+                if (verified != null) {
+                    KeysStateFile.save(plugin.getDataFolder(), verified);
+                    keys = verified;
+                    msg.debug("Stored agent state verified");
+
+                    if (!Objects.equals(verified.tunnelAddress, stored.tunnelAddress)) {
+                        plugin.showTunnelAddress(verified.tunnelAddress);
                     }
-                }
-            } catch (IOException e) {
-                state.compareAndSet(STATE_ONLINE, STATE_ERROR_WAITING);
-                
-                if (e.getMessage().contains("invalid authentication")) {
-                    msg.error("Invalid secret key - please reconfigure");
-                    state.set(STATE_INVALID_AUTH);
-                    break;
-                }
 
-                // Rate limit reconnection attempts
-                reconnectAttempts++;
-                long now = System.currentTimeMillis();
-                long timeSinceLastReconnect = now - lastReconnect;
-                
-                int delay = Math.min(5000 * reconnectAttempts, 60000); // Max 1 minute
-                if (timeSinceLastReconnect < delay) {
-                    delay = (int)(delay - timeSinceLastReconnect);
+                    announceAccount(verified);
+                    return;
                 }
-                
-                if (reconnectAttempts <= 3) {
-                    msg.debug("Connection lost, reconnecting in " + (delay/1000) + "s...");
-                } else if (reconnectAttempts == 4) {
-                    msg.warn("Connection unstable, will keep trying...");
+
+                var current = verifyState.get();
+                if (current == PlayitKeysSetup.STATE_MISSING_SECRET || current == PlayitKeysSetup.STATE_ERROR) {
+                    msg.warn("Stored agent state is no longer valid, it will be rebuilt on the next start");
+                    KeysStateFile.delete(plugin.getDataFolder());
+                    return;
                 }
+            }
+        }, "playit-verify-keys");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
 
+    private boolean isRunning() {
+        var current = state.get();
+        return current != STATE_SHUTDOWN && current != STATE_OFFLINE && current != STATE_INVALID_AUTH;
+    }
+
+    /**
+     * Runs on the control channel's event loop, which only copies the client into the
+     * admission queue so pings and renewals never wait behind tunnel setup.
+     */
+    private void onControlFeed(ControlFeedReader.ControlFeed feedMessage) {
+        if (feedMessage instanceof ControlFeedReader.NewClient newClient) {
+            if (!admissions.offer(newClient, System.nanoTime())) {
+                MessageManager.get().warn("Too many pending connections, dropping new client");
+                return;
+            }
+
+            if (drainScheduled.compareAndSet(false, true)) {
+                admissionLoop.execute(this::drainAdmissions);
+            }
+        }
+    }
+
+    private void drainAdmissions() {
+        do {
+            AdmissionQueue.Slot slot;
+            while ((slot = admissions.peek()) != null) {
                 try {
-                    Thread.sleep(delay);
-                } catch (InterruptedException ignore) {
-                }
-                
-                lastReconnect = System.currentTimeMillis();
-            } finally {
-                if (state.compareAndSet(STATE_SHUTDOWN, STATE_OFFLINE)) {
-                    msg.debug("Control channel shutdown");
-                } else if (state.compareAndSet(STATE_ERROR_WAITING, STATE_CONNECTING)) {
-                    msg.debug("Attempting reconnection...");
-                } else if (state.compareAndSet(STATE_ONLINE, STATE_CONNECTING)) {
-                    msg.debug("Unexpected disconnect, reconnecting...");
+                    admit(slot);
+                } catch (IOException e) {
+                    MessageManager.get().debug("Failed to admit client: " + e.getMessage());
+                } finally {
+                    admissions.release(slot);
                 }
             }
+
+            drainScheduled.set(false);
+            /* a client offered between the last peek and the reset would otherwise wait for the next one */
+        } while (!admissions.isEmpty() && drainScheduled.compareAndSet(false, true));
+    }
+
+    private void admit(AdmissionQueue.Slot client) throws IOException {
+        MessageManager msg = MessageManager.get();
+        var trace = new JoinTrace(client.receivedAt, client.tunnelServerId, client.dataCenterId);
+        trace.admitted();
+
+        if (msg.isDebugEnabled()) {
+            msg.debug("New client connection from " + client.peerAddr);
         }
+
+        /* resolved before tracking, a connection added here is only removed once its tunnel has started */
+        var peerAddress = new InetSocketAddress(InetAddress.getByAddress(client.peerAddr.ipBytes), Short.toUnsignedInt(client.peerAddr.portNumber));
+        var claimAddress = new InetSocketAddress(InetAddress.getByAddress(client.claimAddress.ipBytes), Short.toUnsignedInt(client.claimAddress.portNumber));
+
+        var key = PlayitConnectionTracker.Key.of(client.peerAddr, client.connectAddr);
+        var connection = tracker.addConnection(key, client.tunnelServerId, client.dataCenterId);
+        if (connection == null) {
+            return;
+        }
+
+        msg.debug("Starting TCP tunnel for client");
+
+        new PlayitTcpTunnel(
+                peerAddress,
+                plugin.eventGroup,
+                plugin.transport,
+                tracker,
+                connection,
+                minecraftServerAddress,
+                claimAddress,
+                /* the slot's token array is reused for the next client */
+                client.claimToken.clone(),
+                plugin.injectionPlan,
+                tunnelSettings,
+                connectionTimeoutSeconds,
+                trace
+        ).start();
     }
 }
@@ -1,98 +1,171 @@
 package gg.playit.minecraft;
 
 import gg.playit.minecraft.logger.MessageManager;
+import gg.playit.minecraft.metrics.PlayitMetrics;
+import gg.playit.minecraft.metrics.PopMetrics;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.ReadTimeoutHandler;
-import org.bukkit.Server;
 
 import java.net.InetSocketAddress;
 
 public class PlayitTcpTunnel {
     private final InetSocketAddress trueIp;
     private final EventLoopGroup group;
-    private final String connectionKey;
+    private final NettyTransport transport;
+    private final PlayitConnectionTracker.Connection connection;
     private final PlayitConnectionTracker tracker;
     private final InetSocketAddress minecraftServerAddress;
     private final InetSocketAddress tunnelClaimAddress;
     private final byte[] tunnelClaimToken;
-    private final Server server;
+    private final InjectionPlan injectionPlan;
+    private final TunnelSettings settings;
 
     private final int connectionTimeoutSeconds;
+    private final JoinTrace trace;
 
     public PlayitTcpTunnel(
             InetSocketAddress trueIp,
             EventLoopGroup group,
+            NettyTransport transport,
             PlayitConnectionTracker tracker,
-            String connectionKey,
+            PlayitConnectionTracker.Connection connection,
             InetSocketAddress minecraftServerAddress,
             InetSocketAddress tunnelClaimAddress,
             byte[] tunnelClaimToken,
-            Server server,
-            int connectionTimeoutSeconds
+            InjectionPlan injectionPlan,
+            TunnelSettings settings,
+            int connectionTimeoutSeconds,
+            JoinTrace trace
     ) {
         this.trueIp = trueIp;
         this.group = group;
+        this.transport = transport;
         this.tracker = tracker;
-        this.connectionKey = connectionKey;
+        this.connection = connection;
         this.minecraftServerAddress = minecraftServerAddress;
         this.tunnelClaimAddress = tunnelClaimAddress;
         this.tunnelClaimToken = tunnelClaimToken;
-        this.server = server;
+        this.injectionPlan = injectionPlan;
+        this.settings = settings;
         this.connectionTimeoutSeconds = connectionTimeoutSeconds;
+        this.trace = trace;
     }
 
     private Channel minecraftChannel;
     private Channel tunnelChannel;
+    /* claim confirmed or counted as failed, only touched on the tunnel channel's event loop */
+    private boolean claimSettled;
 
     public void start() {
         MessageManager msg = MessageManager.get();
-        
+
         Bootstrap clientBootstrap = new Bootstrap();
         clientBootstrap.group(group);
-        clientBootstrap.channel(NioSocketChannel.class);
+        clientBootstrap.channel(transport.socketChannelClass());
         clientBootstrap.remoteAddress(this.tunnelClaimAddress);
+        clientBootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, settings.writeBufferWaterMark);
+        if (useSplice()) {
+            EpollSplice.levelTriggered(clientBootstrap);
+        }
 
         clientBootstrap.handler(new ChannelInitializer<SocketChannel>() {
             protected void initChannel(SocketChannel socketChannel) {
                 tunnelChannel = socketChannel;
-                socketChannel.pipeline().addLast(new TunnelConnectionHandler());
+                socketChannel.pipeline()
+                        .addLast("playit_stats", new ByteCountHandler())
+                        .addLast(new TunnelConnectionHandler());
             }
         });
 
         msg.debug("Connecting to tunnel claim: " + tunnelClaimAddress);
-        clientBootstrap.connect().addListener((ChannelFutureListener) future -> {
+        var connect = clientBootstrap.connect();
+
+        /*
+         * once injected the server owns the pipeline, the tunnel closing is the only end of the connection we see.
+         * Closing before the confirmation arrived means the claim failed, however it happened
+         */
+        connect.channel().closeFuture().addListener(f -> {
+            claimFailed();
+            disconnected();
+        });
+
+        connect.addListener((ChannelFutureListener) future -> {
             if (!future.isSuccess()) {
                 msg.debug("Failed to connect to tunnel claim");
+                claimFailed();
                 disconnected();
                 return;
             }
 
+            trace.connected();
             msg.debug("Sending claim token");
 
             future.channel().writeAndFlush(Unpooled.wrappedBuffer(tunnelClaimToken)).addListener(f -> {
                 if (!f.isSuccess()) {
                     msg.debug("Failed to send claim token");
+                    claimFailed();
                 }
             });
         });
     }
 
+    private PopMetrics.Pop pop() {
+        return PlayitMetrics.get().pops.find(connection.tunnelServerId, connection.dataCenterId);
+    }
+
+    private void claimFailed() {
+        if (claimSettled) {
+            return;
+        }
+        claimSettled = true;
+
+        PlayitMetrics.get().claimFailures.increment();
+        pop().claimFailures.increment();
+    }
+
+    private final ChannelFutureListener closeOnFailure = f -> {
+        if (!f.isSuccess()) {
+            MessageManager.get().debug("Data forwarding failed");
+            close();
+        }
+    };
+
+    private void close() {
+        if (tunnelChannel != null) {
+            tunnelChannel.close();
+        }
+        if (minecraftChannel != null) {
+            minecraftChannel.close();
+        }
+        disconnected();
+    }
+
+    /**
+     * Splicing is only set up when injection isn't supported, since it needs the
+     * tunnel channel in level-triggered mode from the start.
+     */
+    private boolean useSplice() {
+        return settings.spliceForwarding && transport == NettyTransport.EPOLL && injectionPlan == null;
+    }
+
     private void disconnected() {
-        this.tracker.removeConnection(connectionKey);
+        this.tracker.removeConnection(connection);
     }
 
-    @ChannelHandler.Sharable
     private class TunnelConnectionHandler extends SimpleChannelInboundHandler<ByteBuf> {
         TunnelConnectionHandler() {
             super(false);
         }
 
         private int confirmBytesRemaining = 8;
+        /* tunnel data read while connecting to the local server, forwarded first once connected */
+        private ByteBuf pending;
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, ByteBuf byteBuf) throws Exception {
@@ -110,165 +183,215 @@ public class PlayitTcpTunnel {
                 byteBuf.readBytes(confirmBytesRemaining);
                 confirmBytesRemaining = 0;
 
+                claimSettled = true;
+                trace.confirmed();
+                var metrics = PlayitMetrics.get();
+                metrics.claimLatency.record(trace.claimMicros());
+                pop().claimLatency.record(trace.claimMicros());
                 msg.debug("Tunnel connection established");
 
                 if (addChannelToMinecraftServer()) {
                     msg.debug("Using direct channel injection");
+                    connection.path = PlayitConnectionTracker.ForwardPath.INJECTED;
+                    metrics.connectionsInjected.increment();
+                    trace.ready(PlayitConnectionTracker.ForwardPath.INJECTED, settings);
+
+                    /* data that came with the confirmation goes to the server pipeline, already counted */
+                    if (byteBuf.isReadable()) {
+                        tunnelChannel.pipeline().context("playit_stats").fireChannelRead(byteBuf);
+                    } else {
+                        byteBuf.release();
+                    }
                     return;
                 }
 
                 var minecraftClient = new Bootstrap();
-                minecraftClient.group(group);
                 minecraftClient.option(ChannelOption.TCP_NODELAY, true);
-                minecraftClient.channel(NioSocketChannel.class);
+                minecraftClient.option(ChannelOption.WRITE_BUFFER_WATER_MARK, settings.writeBufferWaterMark);
+                minecraftClient.channel(transport.socketChannelClass());
                 minecraftClient.remoteAddress(minecraftServerAddress);
 
+                /* keep both sides of the proxy on one thread so forwarding never hops event loops */
+                minecraftClient.group(ctx.channel().eventLoop());
+
+                boolean splice = useSplice();
+                if (splice) {
+                    EpollSplice.levelTriggered(minecraftClient);
+                }
+
                 minecraftClient.handler(new ChannelInitializer<SocketChannel>() {
                     protected void initChannel(SocketChannel socketChannel) {
                         minecraftChannel = socketChannel;
-                        socketChannel.pipeline().addLast(new MinecraftConnectionHandler());
+                        socketChannel.pipeline().addLast("forward", new ForwardingHandler(tunnelChannel));
                     }
                 });
 
+                /* hold tunnel data until there is somewhere to forward it */
+                ctx.channel().config().setAutoRead(false);
+                pending = byteBuf;
+
                 msg.debug("Connecting to local MC server");
                 minecraftClient.connect().addListener((ChannelFutureListener) future -> {
                     if (!future.isSuccess()) {
                         msg.debug("Failed to connect to local MC server");
-                        ctx.disconnect();
+                        releasePending();
+                        ctx.close();
                         disconnected();
                         return;
                     }
 
                     msg.debug("Connected to local MC server");
+                    var minecraft = future.channel();
 
-                    if (byteBuf.readableBytes() == 0) {
-                        byteBuf.release();
-                        ctx.read();
+                    var data = pending;
+                    pending = null;
+                    if (data == null) {
+                        /* the tunnel closed while connecting */
+                        minecraft.close();
+                        disconnected();
+                        return;
+                    }
+
+                    if (splice && EpollSplice.canSplice(tunnelChannel, minecraft)) {
+                        connection.path = PlayitConnectionTracker.ForwardPath.SPLICE;
+                        metrics.connectionsSpliced.increment();
+                        startSplice(ctx, minecraft, data);
+                        trace.ready(PlayitConnectionTracker.ForwardPath.SPLICE, settings);
                     } else {
-                        future.channel().writeAndFlush(byteBuf).addListener(f -> {
-                            if (!f.isSuccess()) {
-                                msg.debug("Failed to forward data to MC server");
-                                future.channel().disconnect();
-                                ctx.disconnect();
-                                disconnected();
-                                return;
-                            }
-
-                            ctx.read();
-                        });
+                        connection.path = PlayitConnectionTracker.ForwardPath.PROXY;
+                        metrics.connectionsProxied.increment();
+                        ctx.pipeline().replace(this, "forward", new ForwardingHandler(minecraft));
+                        trace.ready(PlayitConnectionTracker.ForwardPath.PROXY, settings);
+
+                        if (data.isReadable()) {
+                            minecraft.writeAndFlush(data).addListener(closeOnFailure);
+                        } else {
+                            data.release();
+                        }
+
+                        ctx.channel().config().setAutoRead(true);
                     }
                 });
 
                 return;
             }
 
-            /* proxy data */
-            minecraftChannel.writeAndFlush(byteBuf).addListener(f -> {
-                if (!f.isSuccess()) {
-                    msg.debug("Data forwarding failed");
-                    minecraftChannel.disconnect();
-                    tunnelChannel.disconnect();
-                    disconnected();
-                    return;
-                }
+            if (pending != null) {
+                /* read in the same batch that turned off auto read, keep it behind the earlier data */
+                pending = append(ctx, pending, byteBuf);
+                return;
+            }
 
-                ctx.read();
-            });
+            /* the handler is replaced once data has somewhere to go, forwarding from here would drop it */
+            msg.debug("Tunnel data arrived before forwarding was set up, closing");
+            byteBuf.release();
+            close();
         }
 
-        private boolean addChannelToMinecraftServer() {
-            MessageManager msg = MessageManager.get();
-            ReflectionHelper reflect = new ReflectionHelper();
-
-            Object minecraftServer = reflect.getMinecraftServer(server);
-            if (minecraftServer == null) {
-                msg.debug("Reflection: MC server not found");
-                return false;
-            }
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            releasePending();
+            ctx.fireChannelInactive();
+        }
 
-            Object serverConnection = reflect.serverConnectionFromMCServer(minecraftServer);
-            if (serverConnection == null) {
-                msg.debug("Reflection: ServerConnection not found");
-                return false;
+        private void releasePending() {
+            if (pending != null) {
+                pending.release();
+                pending = null;
             }
+        }
 
-            Object legacyPingHandler = reflect.newLegacyPingHandler(serverConnection);
-            if (legacyPingHandler == null) {
-                msg.debug("Reflection: LegacyPingHandler unavailable");
-                return false;
+        private ByteBuf append(ChannelHandlerContext ctx, ByteBuf buffered, ByteBuf more) {
+            CompositeByteBuf composite;
+            if (buffered instanceof CompositeByteBuf existing) {
+                composite = existing;
+            } else {
+                composite = ctx.alloc().compositeBuffer();
+                composite.addComponent(true, buffered);
             }
+            composite.addComponent(true, more);
+            return composite;
+        }
 
-            Object packetSplitter = reflect.newPacketSplitter();
-            if (packetSplitter == null) {
-                msg.debug("Reflection: PacketSplitter unavailable");
-                return false;
+        /**
+         * Spliced data goes straight from socket to socket, so the relay only starts once data
+         * read before it has been fully written, otherwise it could overtake that data. Neither
+         * side reads until then.
+         */
+        private void startSplice(ChannelHandlerContext ctx, Channel minecraft, ByteBuf remaining) {
+            minecraft.config().setAutoRead(false);
+
+            if (remaining.readableBytes() == 0) {
+                remaining.release();
+                relay(ctx, minecraft);
+                return;
             }
 
-            Object packetDecoder = reflect.newServerBoundPacketDecoder();
-            if (packetDecoder == null) {
-                msg.debug("Reflection: PacketDecoder unavailable");
-                return false;
-            }
+            minecraft.writeAndFlush(remaining).addListener((ChannelFutureListener) f -> {
+                if (!f.isSuccess()) {
+                    MessageManager.get().debug("Failed to forward data before splicing");
+                    close();
+                    return;
+                }
+                relay(ctx, minecraft);
+            });
+        }
 
-            Object packetPrepender = reflect.newPacketPrepender();
-            if (packetPrepender == null) {
-                msg.debug("Reflection: PacketPrepender unavailable");
-                return false;
-            }
+        private void relay(ChannelHandlerContext ctx, Channel minecraft) {
+            MessageManager msg = MessageManager.get();
 
-            Object packetEncoder = reflect.newClientBoundPacketEncoder();
-            if (packetEncoder == null) {
-                msg.debug("Reflection: PacketEncoder unavailable");
-                return false;
-            }
+            ChannelFutureListener closeBoth = f -> {
+                if (tunnelChannel.isOpen() || minecraft.isOpen()) {
+                    tunnelChannel.close();
+                    minecraft.close();
+                    disconnected();
+                }
+            };
 
-            Integer rateLimitNullable = reflect.getRateLimitFromMCServer(minecraftServer);
-            if (rateLimitNullable == null) {
-                rateLimitNullable = 0;
+            for (var relay : EpollSplice.relay(tunnelChannel, minecraft)) {
+                relay.addListener(closeBoth);
             }
+            tunnelChannel.closeFuture().addListener(closeBoth);
+            minecraft.closeFuture().addListener(closeBoth);
 
-            int rateLimit = rateLimitNullable;
-
-            Object networkManager;
-            if (rateLimit > 0) {
-                networkManager = reflect.newNetworkManagerServer(rateLimit);
-            } else {
-                networkManager = reflect.newServerNetworkManager();
-            }
+            minecraft.config().setAutoRead(true);
+            ctx.channel().config().setAutoRead(true);
+            msg.debug("Using splice forwarding");
+        }
 
-            if (networkManager == null) {
-                msg.debug("Reflection: NetworkManager unavailable");
-                return false;
-            }
+        private boolean addChannelToMinecraftServer() {
+            MessageManager msg = MessageManager.get();
 
-            Object handshakeListener = reflect.newHandshakeListener(minecraftServer, networkManager);
-            if (handshakeListener == null) {
-                msg.debug("Reflection: HandshakeListener unavailable");
+            var plan = injectionPlan;
+            if (plan == null) {
                 return false;
             }
 
-            if (!reflect.networkManagerSetListener(networkManager, handshakeListener)) {
-                msg.debug("Reflection: Failed to set listener");
+            InjectionPlan.Handlers handlers;
+            try {
+                handlers = plan.newHandlers();
+            } catch (Throwable e) {
+                msg.debug("Reflection: Failed to create server handlers: " + e.getMessage());
                 return false;
             }
 
-            if (!reflect.setRemoteAddress(tunnelChannel, trueIp)) {
+            if (!plan.setRemoteAddress(tunnelChannel, trueIp)) {
                 msg.debug("Could not set remote address for real IP");
             }
 
             var channel = tunnelChannel.pipeline().removeLast();
             tunnelChannel.pipeline()
+                    .addLast("flush_consolidation", new FlushConsolidationHandler(settings.flushConsolidationLimit, true))
                     .addLast("timeout", new ReadTimeoutHandler(connectionTimeoutSeconds))
-                    .addLast("legacy_query", (ChannelHandler) legacyPingHandler)
-                    .addLast("splitter", (ChannelHandler) packetSplitter)
-                    .addLast("decoder", (ChannelHandler) packetDecoder)
-                    .addLast("prepender", (ChannelHandler) packetPrepender)
-                    .addLast("encoder", (ChannelHandler) packetEncoder)
-                    .addLast("packet_handler", (ChannelHandler) networkManager);
-
-            if (!reflect.addToServerConnections(serverConnection, networkManager)) {
-                msg.debug("Reflection: Failed to add to connections");
-
+                    .addLast("legacy_query", handlers.legacyPing)
+                    .addLast("splitter", handlers.splitter)
+                    .addLast("decoder", handlers.decoder)
+                    .addLast("prepender", handlers.prepender)
+                    .addLast("encoder", handlers.encoder)
+                    .addLast("packet_handler", handlers.networkManager);
+
+            if (!plan.addToServerConnections(handlers.networkManager)) {
+                tunnelChannel.pipeline().remove("flush_consolidation");
                 tunnelChannel.pipeline().remove("timeout");
                 tunnelChannel.pipeline().remove("legacy_query");
                 tunnelChannel.pipeline().remove("splitter");
@@ -287,23 +410,84 @@ public class PlayitTcpTunnel {
         }
     }
 
-    private class MinecraftConnectionHandler extends SimpleChannelInboundHandler<ByteBuf> {
-        MinecraftConnectionHandler() {
-            super(false);
+    /**
+     * Counts bytes passing through the tunnel channel, sits at the head of the pipeline so
+     * it sees both injected and proxied traffic. Spliced data bypasses it.
+     */
+    private class ByteCountHandler extends ChannelDuplexHandler {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf buf) {
+                connection.bytesIn += buf.readableBytes();
+                connection.packetsIn++;
+            }
+            ctx.fireChannelRead(msg);
         }
 
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
-            tunnelChannel.writeAndFlush(msg).addListener(f -> {
-                if (!f.isSuccess()) {
-                    MessageManager.get().debug("Tunnel write failed");
-                    minecraftChannel.disconnect();
-                    tunnelChannel.disconnect();
-                    return;
-                }
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof ByteBuf buf) {
+                connection.bytesOut += buf.readableBytes();
+                connection.packetsOut++;
+            }
+            ctx.write(msg, promise);
+        }
+    }
 
-                ctx.read();
-            });
+    /**
+     * Forwards data read from one channel to its peer. Writes made during a read burst
+     * are flushed together in channelReadComplete, or early once the consolidation
+     * limit is reached, so a burst of small packets costs one syscall instead of many.
+     * <p>
+     * Flow control follows the peer's write buffer: once it passes the high water mark
+     * the peer stops auto reading until this channel drains below the low water mark.
+     */
+    private class ForwardingHandler extends ChannelInboundHandlerAdapter {
+        private final Channel peer;
+        private int unflushed;
+
+        ForwardingHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            /* write failures surface as exceptionCaught on the peer */
+            peer.write(msg, peer.voidPromise());
+
+            if (++unflushed >= settings.flushConsolidationLimit) {
+                unflushed = 0;
+                peer.flush();
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (unflushed != 0) {
+                unflushed = 0;
+                peer.flush();
+            }
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            /* only read from the peer while this channel can take more data */
+            peer.config().setAutoRead(ctx.channel().isWritable());
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            /* let already forwarded data drain before closing the other side */
+            peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            disconnected();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            MessageManager.get().debug("Forwarding error: " + cause.getMessage());
+            close();
         }
     }
 }
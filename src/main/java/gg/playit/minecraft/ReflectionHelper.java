@@ -2,16 +2,23 @@ package gg.playit.minecraft;
 
 import gg.playit.minecraft.logger.MessageManager;
 import io.netty.channel.AbstractChannel;
-import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
 import org.bukkit.Server;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.*;
-import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 
+/**
+ * Looks up the server internals needed for channel injection. Lookups are slow,
+ * {@link InjectionPlan} runs them once and keeps the resulting handles.
+ */
 public class ReflectionHelper {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
     private final Class<?> ServerConnection;
     private final Class<?> LegacyPingHandler;
     private final Class<?> MinecraftServer;
@@ -65,16 +72,19 @@ public class ReflectionHelper {
         return null;
     }
 
-    public boolean networkManagerSetListener(Object networkManager, Object listener) {
+    /**
+     * (NetworkManager, PacketListener) -> void, using the setListener method when present
+     * and falling back to writing the packet listener field directly.
+     */
+    public MethodHandle networkManagerListenerSetter() {
         if (NetworkManager == null || PacketListener == null) {
-            return false;
+            return null;
         }
 
         try {
             Method method = searchMethod(NetworkManager, "setListener", PacketListener);
             method.setAccessible(true);
-            method.invoke(networkManager, listener);
-            return true;
+            return LOOKUP.unreflect(method);
         } catch (Exception e) {
             MessageManager.get().debug("Reflection: setListener method failed");
         }
@@ -82,8 +92,7 @@ public class ReflectionHelper {
         try {
             var field = searchForFieldByName(NetworkManager, "packetListener");
             field.setAccessible(true);
-            field.set(networkManager, listener);
-            return true;
+            return LOOKUP.unreflectSetter(field);
         } catch (Exception e) {
             MessageManager.get().debug("Reflection: packetListener field failed");
         }
@@ -92,8 +101,7 @@ public class ReflectionHelper {
         if (options.size() == 1) {
             try {
                 options.get(0).setAccessible(true);
-                options.get(0).set(networkManager, listener);
-                return true;
+                return LOOKUP.unreflectSetter(options.get(0));
             } catch (Exception e) {
                 MessageManager.get().debug("Reflection: type-based listener failed");
             }
@@ -101,42 +109,37 @@ public class ReflectionHelper {
             MessageManager.get().debug("Reflection: multiple packet listener fields found");
         }
 
-        return false;
+        return null;
     }
 
-    public boolean addToServerConnections(Object serverConnection, Object networkManager) {
+    /**
+     * (ServerConnection) -> List of NetworkManager, the list the server ticks connections from.
+     */
+    public MethodHandle serverConnectionsGetter() {
         if (ServerConnection == null || NetworkManager == null) {
-            return false;
+            return null;
         }
 
         try {
             Field field = searchForFieldByName(ServerConnection, "connections");
             field.setAccessible(true);
-
-            var list = (List<Object>) field.get(serverConnection);
-            list.add(networkManager);
-
-            return true;
+            return LOOKUP.unreflectGetter(field);
         } catch (Exception e) {
             MessageManager.get().debug("Reflection: connections field failed");
         }
 
-        HashSet<Object> potentialFieldObjects = new HashSet<>();
+        var potentialFields = new ArrayList<Field>();
 
         var search = ServerConnection;
         while (search != null) {
-            for (var field : ServerConnection.getDeclaredFields()) {
+            for (var field : search.getDeclaredFields()) {
                 if (List.class.isAssignableFrom(field.getType())) {
                     if (field.getGenericType() instanceof ParameterizedType parameterizedType) {
                         var type = parameterizedType.getActualTypeArguments()[0];
                         var typeClass = cls(type.getTypeName());
 
                         if (typeClass != null && NetworkManager.isAssignableFrom(typeClass)) {
-                            try {
-                                field.setAccessible(true);
-                                potentialFieldObjects.add(field.get(serverConnection));
-                            } catch (Exception ignore) {
-                            }
+                            potentialFields.add(field);
                         }
                     }
                 }
@@ -144,43 +147,42 @@ public class ReflectionHelper {
             search = search.getSuperclass();
         }
 
-        if (potentialFieldObjects.size() == 1) {
-            var found = potentialFieldObjects.toArray()[0];
+        if (potentialFields.size() == 1) {
             try {
-                var list = (List) found;
-                list.add(networkManager);
-                return true;
+                var field = potentialFields.get(0);
+                field.setAccessible(true);
+                return LOOKUP.unreflectGetter(field);
             } catch (Exception e) {
-                MessageManager.get().debug("Reflection: list add failed");
+                MessageManager.get().debug("Reflection: connections list access failed");
             }
-        } else if (potentialFieldObjects.size() > 1) {
+        } else if (potentialFields.size() > 1) {
             MessageManager.get().debug("Reflection: multiple connection lists");
         }
 
-        return false;
+        return null;
     }
 
-    public Object newHandshakeListener(Object minecraftServer, Object networkManager) {
+    /**
+     * (MinecraftServer, NetworkManager) -> HandshakeListener
+     */
+    public MethodHandle handshakeListenerConstructor() {
         if (HandshakeListener == null) {
             return null;
         }
-
-        try {
-            return HandshakeListener.getConstructor(MinecraftServer, NetworkManager).newInstance(minecraftServer, networkManager);
-        } catch (Exception e) {
-            return null;
-        }
+        return constructor(HandshakeListener, MinecraftServer, NetworkManager);
     }
 
-    public boolean setRemoteAddress(Channel channel, SocketAddress address) {
+    /**
+     * (Channel, SocketAddress) -> void, overrides the address Netty reports for a channel.
+     */
+    public MethodHandle remoteAddressSetter() {
         try {
             Field field = AbstractChannel.class.getDeclaredField("remoteAddress");
             field.setAccessible(true);
-            field.set(channel, address);
-            return true;
+            return LOOKUP.unreflectSetter(field);
         } catch (Exception error) {
             MessageManager.get().debug("Reflection: remoteAddress failed");
-            return false;
+            return null;
         }
     }
 
@@ -196,92 +198,78 @@ public class ReflectionHelper {
         }
     }
 
-    public Object newLegacyPingHandler(Object serverConnection) {
+    /**
+     * (ServerConnection) -> LegacyPingHandler
+     */
+    public MethodHandle legacyPingHandlerConstructor() {
         if (LegacyPingHandler == null || ServerConnection == null) {
             return null;
         }
-
-        try {
-            return LegacyPingHandler.getConstructor(ServerConnection).newInstance(serverConnection);
-        } catch (NoSuchMethodException | InvocationTargetException | InstantiationException |
-                 IllegalAccessException e) {
-            return null;
-        }
+        return constructor(LegacyPingHandler, ServerConnection);
     }
 
-    public Object newPacketSplitter() {
+    public MethodHandle packetSplitterConstructor() {
         if (PacketSplitter == null) {
             return null;
         }
-
-        try {
-            return PacketSplitter.getConstructor().newInstance();
-        } catch (NoSuchMethodException | InvocationTargetException | InstantiationException |
-                 IllegalAccessException e) {
-            return null;
-        }
+        return constructor(PacketSplitter);
     }
 
-    public Object newServerBoundPacketDecoder() {
+    public MethodHandle serverBoundPacketDecoderConstructor() {
         if (PacketDecoder == null) {
             return null;
         }
-
-        try {
-            return PacketDecoder.getConstructor(EnumProtocolDirection).newInstance(serverBound());
-        } catch (Exception e) {
-            return null;
-        }
+        return bindDirection(constructor(PacketDecoder, EnumProtocolDirection), serverBound());
     }
 
-    public Object newClientBoundPacketEncoder() {
+    public MethodHandle clientBoundPacketEncoderConstructor() {
         if (PacketEncoder == null) {
             return null;
         }
-
-        try {
-            return PacketEncoder.getConstructor(EnumProtocolDirection).newInstance(clientBound());
-        } catch (Exception e) {
-            return null;
-        }
+        return bindDirection(constructor(PacketEncoder, EnumProtocolDirection), clientBound());
     }
 
-    public Object newPacketPrepender() {
+    public MethodHandle packetPrependerConstructor() {
         if (PacketPrepender == null) {
             return null;
         }
-
-        try {
-            return PacketPrepender.getConstructor().newInstance();
-        } catch (Exception e) {
-            return null;
-        }
+        return constructor(PacketPrepender);
     }
 
-    public Object newNetworkManagerServer(int rateLimit) {
+    public MethodHandle networkManagerServerConstructor(int rateLimit) {
         if (NetworkManagerServer == null) {
             return null;
         }
 
-        try {
-            return NetworkManagerServer.getConstructor(Integer.class).newInstance(rateLimit);
-        } catch (Exception e) {
+        var handle = constructor(NetworkManagerServer, Integer.class);
+        if (handle == null) {
             return null;
         }
+        return MethodHandles.insertArguments(handle, 0, rateLimit);
     }
 
-    public Object newServerNetworkManager() {
+    public MethodHandle serverNetworkManagerConstructor() {
         if (NetworkManager == null) {
             return null;
         }
+        return bindDirection(constructor(NetworkManager, EnumProtocolDirection), serverBound());
+    }
 
+    private static MethodHandle constructor(Class<?> subject, Class<?>... parameterTypes) {
         try {
-            return NetworkManager.getConstructor(EnumProtocolDirection).newInstance(serverBound());
+            return LOOKUP.unreflectConstructor(subject.getConstructor(parameterTypes));
         } catch (Exception e) {
             return null;
         }
     }
 
+    private static MethodHandle bindDirection(MethodHandle constructor, Object direction) {
+        if (constructor == null || direction == null) {
+            return null;
+        }
+        return MethodHandles.insertArguments(constructor, 0, direction);
+    }
+
     private Object serverBound() {
         if (EnumProtocolDirection == null) {
             return null;
@@ -369,6 +357,45 @@ public class ReflectionHelper {
         return searchForAttribute(MinecraftServer, ServerConnection, object);
     }
 
+    /**
+     * The event loop group the server accepts player connections on, taken from the
+     * first listening channel of the ServerConnection.
+     */
+    public EventLoopGroup serverEventLoopGroup(Object serverConnection) {
+        if (serverConnection == null || ServerConnection == null) {
+            return null;
+        }
+
+        List<Field> listFields;
+        try {
+            listFields = List.of(searchForFieldByName(ServerConnection, "channels"));
+        } catch (NoSuchFieldException e) {
+            listFields = searchForFieldByType(ServerConnection, List.class);
+        }
+
+        for (var field : listFields) {
+            try {
+                field.setAccessible(true);
+                var list = (List<?>) field.get(serverConnection);
+
+                synchronized (list) {
+                    for (var item : list) {
+                        if (item instanceof ChannelFuture future) {
+                            var group = future.channel().eventLoop().parent();
+                            if (group != null) {
+                                return group;
+                            }
+                        }
+                    }
+                }
+            } catch (Exception ignore) {
+            }
+        }
+
+        MessageManager.get().debug("Reflection: server event loop group not found");
+        return null;
+    }
+
     public Method searchMethod(Class<?> subject, String name, Class<?>... parameterTypes) throws NoSuchMethodException {
         try {
             return subject.getMethod(name, parameterTypes);
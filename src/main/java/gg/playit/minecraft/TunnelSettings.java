@@ -0,0 +1,27 @@
+package gg.playit.minecraft;
+
+import io.netty.channel.WriteBufferWaterMark;
+import org.bukkit.configuration.file.FileConfiguration;
+
+/**
+ * Forwarding options for tunnel connections, read once from the plugin config.
+ */
+public class TunnelSettings {
+    public boolean spliceForwarding;
+    public int flushConsolidationLimit;
+    public WriteBufferWaterMark writeBufferWaterMark;
+    /* 0 disables the slow connection log */
+    public int slowJoinThresholdMs;
+
+    public static TunnelSettings fromConfig(FileConfiguration config) {
+        var settings = new TunnelSettings();
+        settings.spliceForwarding = config.getBoolean(PlayitBukkit.CFG_SPLICE_FORWARDING, false);
+        settings.flushConsolidationLimit = Math.max(1, config.getInt(PlayitBukkit.CFG_FLUSH_CONSOLIDATION_LIMIT, 64));
+
+        int low = Math.max(0, config.getInt(PlayitBukkit.CFG_WRITE_BUFFER_LOW, 32 * 1024));
+        int high = Math.max(low, config.getInt(PlayitBukkit.CFG_WRITE_BUFFER_HIGH, 64 * 1024));
+        settings.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+        settings.slowJoinThresholdMs = Math.max(0, config.getInt(PlayitBukkit.CFG_SLOW_JOIN_THRESHOLD_MS, 2000));
+        return settings;
+    }
+}
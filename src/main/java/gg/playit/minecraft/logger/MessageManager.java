@@ -68,6 +68,13 @@ public class MessageManager {
     // Logging methods
     // ─────────────────────────────────────────────────────────────────
 
+    /**
+     * Check before building expensive debug messages.
+     */
+    public boolean isDebugEnabled() {
+        return minLevel == LogLevel.DEBUG;
+    }
+
     public void debug(String message) {
         if (minLevel == LogLevel.DEBUG) {
             sendConsole("§8[Debug] " + message);
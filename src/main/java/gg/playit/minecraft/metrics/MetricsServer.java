@@ -0,0 +1,318 @@
+package gg.playit.minecraft.metrics;
+
+import gg.playit.minecraft.PlayitKeysSetup;
+import gg.playit.minecraft.PlayitManager;
+import gg.playit.minecraft.logger.MessageManager;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.*;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.handler.codec.http.*;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.function.Supplier;
+
+/**
+ * Serves {@link PlayitMetrics} in the OpenMetrics text format for Prometheus. Runs entirely on
+ * the plugin's event loops, a scrape never touches the server's main thread. Nothing is bound
+ * or allocated unless it's enabled in the config.
+ */
+public class MetricsServer implements Closeable {
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String PATH = "/metrics";
+
+    /* seconds */
+    private static final String[] LATENCY_BUCKETS = {
+            "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    /* seconds */
+    private static final String[] SESSION_BUCKETS = {
+            "10", "60", "300", "900", "1800", "3600", "7200", "14400", "43200"
+    };
+
+    private static final String[] STATE_NAMES = {
+            "setup", "waiting_for_claim", "verifying_secret", "creating_tunnel", "setup_error",
+            "connecting", "online", "offline", "reconnecting", "invalid_auth", "shutdown"
+    };
+
+    private static final int[] STATE_CODES = {
+            PlayitKeysSetup.STATE_INIT, PlayitKeysSetup.STATE_MISSING_SECRET, PlayitKeysSetup.STATE_CHECKING_SECRET,
+            PlayitKeysSetup.STATE_CREATING_TUNNEL, PlayitKeysSetup.STATE_ERROR,
+            PlayitManager.STATE_CONNECTING, PlayitManager.STATE_ONLINE, PlayitManager.STATE_OFFLINE,
+            PlayitManager.STATE_ERROR_WAITING, PlayitManager.STATE_INVALID_AUTH, PlayitManager.STATE_SHUTDOWN
+    };
+
+    private final Channel channel;
+
+    private MetricsServer(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Binds in the background, failures are logged and leave the server closed.
+     *
+     * @param manager current manager, may return null while the agent is stopped
+     */
+    public static MetricsServer start(EventLoopGroup group, Class<? extends ServerSocketChannel> channelClass,
+                                      InetSocketAddress address, Supplier<PlayitManager> manager) {
+        var bootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(channelClass)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(4096))
+                                .addLast(new ScrapeHandler(manager));
+                    }
+                });
+
+        var future = bootstrap.bind(address);
+        future.addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess()) {
+                MessageManager.get().info("Serving metrics on http://" + address.getHostString() + ":" + address.getPort() + PATH);
+            } else {
+                MessageManager.get().warn("Failed to start metrics endpoint on " + address + ": " + f.cause().getMessage());
+            }
+        });
+
+        return new MetricsServer(future.channel());
+    }
+
+    @Override
+    public void close() {
+        channel.close();
+    }
+
+    private static class ScrapeHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final Supplier<PlayitManager> manager;
+
+        ScrapeHandler(Supplier<PlayitManager> manager) {
+            this.manager = manager;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            var path = new QueryStringDecoder(request.uri()).path();
+
+            FullHttpResponse response;
+            if (!path.equals(PATH)) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_FOUND);
+            } else if (!request.method().equals(HttpMethod.GET)) {
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+                response.headers().set(HttpHeaderNames.ALLOW, HttpMethod.GET);
+            } else {
+                var body = ByteBufUtil.writeUtf8(ctx.alloc(), render(manager.get()));
+                response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.OK, body);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            }
+
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+
+            var write = ctx.writeAndFlush(response);
+            if (!keepAlive) {
+                write.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            MessageManager.get().debug("Metrics request failed: " + cause.getMessage());
+            ctx.close();
+        }
+    }
+
+    static String render(PlayitManager manager) {
+        var metrics = PlayitMetrics.get();
+        var out = new StringBuilder(4096);
+
+        long active = 0;
+        long[] live = new long[4];
+        if (manager != null) {
+            var tracker = manager.getTracker();
+            tracker.forEach(connection -> {
+                live[0] += connection.getBytesIn();
+                live[1] += connection.getBytesOut();
+                live[2] += connection.getPacketsIn();
+                live[3] += connection.getPacketsOut();
+            });
+            active = tracker.getActiveCount();
+        }
+
+        family(out, "playit_connections_active", "gauge", "Tunnel connections currently open");
+        sample(out, "playit_connections_active", null, active);
+
+        family(out, "playit_connections", "counter", "Tunnel connections accepted, by forwarding path");
+        sample(out, "playit_connections_total", "path=\"injected\"", metrics.connectionsInjected.sum());
+        sample(out, "playit_connections_total", "path=\"proxied\"", metrics.connectionsProxied.sum());
+        sample(out, "playit_connections_total", "path=\"spliced\"", metrics.connectionsSpliced.sum());
+
+        family(out, "playit_traffic_bytes", "counter", "Bytes forwarded, spliced connections are not counted");
+        out.append("# UNIT playit_traffic_bytes bytes\n");
+        sample(out, "playit_traffic_bytes_total", "direction=\"in\"", metrics.closedBytesIn.sum() + live[0]);
+        sample(out, "playit_traffic_bytes_total", "direction=\"out\"", metrics.closedBytesOut.sum() + live[1]);
+
+        family(out, "playit_traffic_packets", "counter", "Reads and writes forwarded, spliced connections are not counted");
+        sample(out, "playit_traffic_packets_total", "direction=\"in\"", metrics.closedPacketsIn.sum() + live[2]);
+        sample(out, "playit_traffic_packets_total", "direction=\"out\"", metrics.closedPacketsOut.sum() + live[3]);
+
+        histogram(out, "playit_claim_latency_seconds", "Time from a new client notice to the tunnel server confirming the claim", metrics.claimLatency);
+        counter(out, "playit_claim_failures", "Tunnel claims that failed", metrics.claimFailures.sum());
+
+        family(out, "playit_join_stage_seconds", "histogram", "Connection setup time per stage");
+        out.append("# UNIT playit_join_stage_seconds seconds\n");
+        histogramSamples(out, "playit_join_stage_seconds", "stage=\"control_queue\",", metrics.joinQueue);
+        histogramSamples(out, "playit_join_stage_seconds", "stage=\"claim_connect\",", metrics.joinConnect);
+        histogramSamples(out, "playit_join_stage_seconds", "stage=\"claim_confirm\",", metrics.joinConfirm);
+        histogramSamples(out, "playit_join_stage_seconds", "stage=\"inject\",", metrics.joinInject);
+        histogramSamples(out, "playit_join_stage_seconds", "stage=\"server_accept\",", metrics.joinAccept);
+        histogram(out, "playit_join_seconds", "Connection setup time from the control channel seeing the client to the server having it", metrics.joinTotal);
+
+        family(out, "playit_control_state", "stateset", "Agent and control channel state");
+        int state = manager == null ? PlayitManager.STATE_OFFLINE : manager.state();
+        for (var i = 0; i < STATE_NAMES.length; ++i) {
+            sample(out, "playit_control_state", "playit_control_state=\"" + STATE_NAMES[i] + "\"", STATE_CODES[i] == state ? 1 : 0);
+        }
+
+        histogram(out, "playit_control_rtt_seconds", "Control channel round trip time", metrics.controlRtt);
+        counter(out, "playit_control_reconnects", "Control channel reconnects", metrics.controlReconnects.sum());
+        counter(out, "playit_control_decode_failures", "Control packets that could not be decoded", metrics.controlDecodeFailures.sum());
+
+        var control = manager == null ? null : manager.getControlChannel();
+        if (control != null && control.getRtt().getSampleCount() != 0) {
+            family(out, "playit_control_smoothed_rtt_seconds", "gauge", "Smoothed control channel round trip time");
+            out.append("# UNIT playit_control_smoothed_rtt_seconds seconds\n");
+            sample(out, "playit_control_smoothed_rtt_seconds", null, control.getRtt().getSmoothedRtt() / 1000.0);
+        }
+
+        histogram(out, "playit_api_latency_seconds", "playit.gg API call latency", metrics.apiLatency);
+        counter(out, "playit_api_errors", "playit.gg API calls that failed", metrics.apiErrors.sum());
+
+        renderPops(out, metrics.pops);
+
+        out.append("# EOF\n");
+        return out.toString();
+    }
+
+    private static void renderPops(StringBuilder out, PopMetrics metrics) {
+        var pops = metrics.snapshot();
+        var overflow = metrics.getOverflow();
+        if (overflow.connections.sum() != 0) {
+            pops.add(overflow);
+        }
+
+        var labels = new String[pops.size()];
+        for (var i = 0; i < labels.length; ++i) {
+            var pop = pops.get(i);
+            labels[i] = pop.isOverflow()
+                    ? "tunnel_server=\"other\",data_center=\"other\","
+                    : "tunnel_server=\"" + pop.tunnelServerId + "\",data_center=\"" + pop.dataCenterId + "\",";
+        }
+
+        family(out, "playit_pop_connections", "counter", "Tunnel connections per tunnel server and data center");
+        for (var i = 0; i < labels.length; ++i) {
+            sample(out, "playit_pop_connections_total", withoutComma(labels[i]), pops.get(i).connections.sum());
+        }
+
+        family(out, "playit_pop_connections_active", "gauge", "Open tunnel connections per tunnel server and data center");
+        for (var i = 0; i < labels.length; ++i) {
+            var pop = pops.get(i);
+            sample(out, "playit_pop_connections_active", withoutComma(labels[i]), Math.max(0, pop.connections.sum() - pop.closed.sum()));
+        }
+
+        family(out, "playit_pop_claim_failures", "counter", "Failed tunnel claims per tunnel server and data center");
+        for (var i = 0; i < labels.length; ++i) {
+            sample(out, "playit_pop_claim_failures_total", withoutComma(labels[i]), pops.get(i).claimFailures.sum());
+        }
+
+        family(out, "playit_pop_claim_latency_seconds", "histogram", "Successful tunnel claim latency per tunnel server and data center");
+        out.append("# UNIT playit_pop_claim_latency_seconds seconds\n");
+        for (var i = 0; i < labels.length; ++i) {
+            histogramSamples(out, "playit_pop_claim_latency_seconds", labels[i], pops.get(i).claimLatency);
+        }
+
+        family(out, "playit_pop_traffic_bytes", "counter", "Bytes forwarded by closed connections per tunnel server and data center");
+        out.append("# UNIT playit_pop_traffic_bytes bytes\n");
+        for (var i = 0; i < labels.length; ++i) {
+            sample(out, "playit_pop_traffic_bytes_total", labels[i] + "direction=\"in\"", pops.get(i).bytesIn.sum());
+            sample(out, "playit_pop_traffic_bytes_total", labels[i] + "direction=\"out\"", pops.get(i).bytesOut.sum());
+        }
+
+        family(out, "playit_pop_session_duration_seconds", "histogram", "Duration of closed connections per tunnel server and data center");
+        out.append("# UNIT playit_pop_session_duration_seconds seconds\n");
+        for (var i = 0; i < labels.length; ++i) {
+            histogramSamples(out, "playit_pop_session_duration_seconds", labels[i], pops.get(i).sessionDuration, SESSION_BUCKETS, 1000);
+        }
+    }
+
+    private static String withoutComma(String labels) {
+        return labels.isEmpty() ? null : labels.substring(0, labels.length() - 1);
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        family(out, name, "counter", help);
+        sample(out, name + "_total", null, value);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @param micros histogram recorded in microseconds, exported in seconds
+     */
+    private static void histogram(StringBuilder out, String name, String help, Histogram micros) {
+        family(out, name, "histogram", help);
+        out.append("# UNIT ").append(name).append(" seconds\n");
+        histogramSamples(out, name, "", micros);
+    }
+
+    /**
+     * @param labels extra labels ending with a comma, or empty
+     */
+    private static void histogramSamples(StringBuilder out, String name, String labels, Histogram micros) {
+        histogramSamples(out, name, labels, micros, LATENCY_BUCKETS, 1_000_000);
+    }
+
+    /**
+     * @param buckets   upper bounds in seconds
+     * @param perSecond histogram units per second
+     */
+    private static void histogramSamples(StringBuilder out, String name, String labels, Histogram histogram, String[] buckets, long perSecond) {
+        /* read the count first so buckets recorded meanwhile can't exceed +Inf */
+        long count = histogram.getCount();
+        for (var bucket : buckets) {
+            long bound = (long) (Double.parseDouble(bucket) * perSecond);
+            long below = Math.min(count, histogram.countAtOrBelow(bound));
+            sample(out, name + "_bucket", labels + "le=\"" + bucket + "\"", below);
+        }
+        sample(out, name + "_bucket", labels + "le=\"+Inf\"", count);
+
+        sample(out, name + "_count", withoutComma(labels), count);
+        sample(out, name + "_sum", withoutComma(labels), (double) histogram.getSum() / perSecond);
+    }
+}
@@ -0,0 +1,55 @@
+package gg.playit.minecraft.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and latency histograms. Everything is a {@link LongAdder} or a
+ * {@link Histogram} so recording never takes a lock. Per-connection traffic is counted on
+ * the connection itself (single writer, plain field updates) and only folded in here when
+ * the connection closes, which keeps the forwarding path free of shared writes.
+ */
+public final class PlayitMetrics {
+    private static final PlayitMetrics INSTANCE = new PlayitMetrics();
+
+    public static PlayitMetrics get() {
+        return INSTANCE;
+    }
+
+    private PlayitMetrics() {
+    }
+
+    public final LongAdder connectionsTotal = new LongAdder();
+    public final LongAdder connectionsInjected = new LongAdder();
+    public final LongAdder connectionsProxied = new LongAdder();
+    public final LongAdder connectionsSpliced = new LongAdder();
+
+    /* traffic of closed connections, open ones are summed from the tracker */
+    public final LongAdder closedBytesIn = new LongAdder();
+    public final LongAdder closedBytesOut = new LongAdder();
+    public final LongAdder closedPacketsIn = new LongAdder();
+    public final LongAdder closedPacketsOut = new LongAdder();
+
+    /* microseconds from admitting a NewClient to the tunnel server confirming the claim */
+    public final Histogram claimLatency = new Histogram();
+    /* tunnel claims that closed before the tunnel server confirmed them */
+    public final LongAdder claimFailures = new LongAdder();
+
+    /* microseconds per connection setup stage, from the control channel seeing the client to the server having it */
+    public final Histogram joinQueue = new Histogram();
+    public final Histogram joinConnect = new Histogram();
+    public final Histogram joinConfirm = new Histogram();
+    public final Histogram joinInject = new Histogram();
+    public final Histogram joinAccept = new Histogram();
+    public final Histogram joinTotal = new Histogram();
+
+    /* microseconds */
+    public final Histogram controlRtt = new Histogram();
+    public final LongAdder controlReconnects = new LongAdder();
+    public final LongAdder controlDecodeFailures = new LongAdder();
+
+    /* microseconds */
+    public final Histogram apiLatency = new Histogram();
+    public final LongAdder apiErrors = new LongAdder();
+
+    public final PopMetrics pops = new PopMetrics(32);
+}
@@ -0,0 +1,144 @@
+package gg.playit.minecraft.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunnel stats per playit point of presence, keyed by the tunnel server and data center ids
+ * from NewClient. Holds at most {@link #limit} PoPs. When a new one shows up while full, the PoP
+ * that was seen least recently is folded into a shared overflow entry to make room, so PoPs in
+ * use stay listed, stale ones age out and memory stays bounded on long-running servers.
+ */
+public class PopMetrics {
+    private final int limit;
+    private final ConcurrentHashMap<PopKey, Pop> pops = new ConcurrentHashMap<>();
+    private final Pop overflow = new Pop(-1, -1);
+
+    private record PopKey(long tunnelServerId, int dataCenterId) {
+    }
+
+    PopMetrics(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Counts a new connection, adding the PoP if it isn't tracked yet.
+     *
+     * @return the PoP's stats
+     */
+    public Pop connectionStarted(long tunnelServerId, int dataCenterId) {
+        var key = new PopKey(tunnelServerId, dataCenterId);
+        var pop = pops.get(key);
+        if (pop == null) {
+            pop = add(key);
+        }
+        pop.lastSeenAt = System.currentTimeMillis();
+        pop.connections.increment();
+        return pop;
+    }
+
+    /**
+     * Looks up a PoP without adding it, connections of evicted PoPs report into the overflow.
+     */
+    public Pop find(long tunnelServerId, int dataCenterId) {
+        var pop = pops.get(new PopKey(tunnelServerId, dataCenterId));
+        if (pop == null) {
+            return overflow;
+        }
+        pop.lastSeenAt = System.currentTimeMillis();
+        return pop;
+    }
+
+    /* only taken when a PoP shows up for the first time */
+    private synchronized Pop add(PopKey key) {
+        var pop = pops.get(key);
+        if (pop != null) {
+            return pop;
+        }
+
+        if (pops.size() >= limit) {
+            PopKey stalest = null;
+            long oldest = Long.MAX_VALUE;
+            for (var entry : pops.entrySet()) {
+                var seenAt = entry.getValue().lastSeenAt;
+                if (seenAt < oldest) {
+                    oldest = seenAt;
+                    stalest = entry.getKey();
+                }
+            }
+
+            /* samples racing the fold can be lost, fine for stats */
+            var evicted = pops.remove(stalest);
+            overflow.add(evicted);
+        }
+
+        pop = new Pop(key.tunnelServerId, key.dataCenterId);
+        pops.put(key, pop);
+        return pop;
+    }
+
+    /**
+     * @return tracked PoPs with the most connections first, the overflow entry isn't included
+     */
+    public List<Pop> snapshot() {
+        var list = new ArrayList<>(pops.values());
+        list.sort(Comparator.comparingLong((Pop pop) -> pop.connections.sum()).reversed());
+        return list;
+    }
+
+    /**
+     * @return combined stats of PoPs that didn't fit, ids are -1
+     */
+    public Pop getOverflow() {
+        return overflow;
+    }
+
+    public static class Pop {
+        public final long tunnelServerId;
+        public final int dataCenterId;
+
+        public final LongAdder connections = new LongAdder();
+        public final LongAdder closed = new LongAdder();
+        public final LongAdder claimFailures = new LongAdder();
+        /* microseconds, its count is the number of successful claims */
+        public final Histogram claimLatency = new Histogram();
+        public final LongAdder bytesIn = new LongAdder();
+        public final LongAdder bytesOut = new LongAdder();
+        /* milliseconds */
+        public final Histogram sessionDuration = new Histogram();
+
+        /* last connection start or stats update, decides eviction */
+        volatile long lastSeenAt = System.currentTimeMillis();
+
+        Pop(long tunnelServerId, int dataCenterId) {
+            this.tunnelServerId = tunnelServerId;
+            this.dataCenterId = dataCenterId;
+        }
+
+        public boolean isOverflow() {
+            return tunnelServerId == -1 && dataCenterId == -1;
+        }
+
+        /**
+         * @return share of finished claims that succeeded, 1 without any
+         */
+        public double claimSuccessRate() {
+            long succeeded = claimLatency.getCount();
+            long total = succeeded + claimFailures.sum();
+            return total == 0 ? 1 : (double) succeeded / total;
+        }
+
+        private void add(Pop other) {
+            connections.add(other.connections.sum());
+            closed.add(other.closed.sum());
+            claimFailures.add(other.claimFailures.sum());
+            claimLatency.add(other.claimLatency);
+            bytesIn.add(other.bytesIn.sum());
+            bytesOut.add(other.bytesOut.sum());
+            sessionDuration.add(other.sessionDuration);
+        }
+    }
+}